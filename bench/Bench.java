@@ -0,0 +1,176 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/*
+ * Small benchmark harness in the manner of JMH, for a tree without a build tool:
+ * warmup iterations, then measured iterations, each reporting one score. Results
+ * are printed as a table and can be written as JMH-format JSON, which the usual JMH
+ * tooling reads, so runs can be compared over time.
+ */
+class Bench {
+    /* One iteration of a benchmark: does the work and returns its score */
+    interface Iteration {
+        double run() throws Exception;
+    }
+
+    static class Result {
+        final String name;
+        final String mode;
+        final String unit;
+        final Map<String, String> params;
+        final double[] scores;
+        final Map<String, Double> secondary = new LinkedHashMap<>();
+
+        Result(String name, String mode, String unit, Map<String, String> params, double[] scores) {
+            this.name = name;
+            this.mode = mode;
+            this.unit = unit;
+            this.params = params;
+            this.scores = scores;
+        }
+
+        double score() {
+            return Arrays.stream(scores).average().orElse(0);
+        }
+
+        /* Half width of the 99.9% confidence interval, normal approximation */
+        double error() {
+            if (scores.length < 2)
+                return Double.NaN;
+            double mean = score(), sum = 0;
+            for (double score: scores)
+                sum += (score - mean) * (score - mean);
+            return 3.29 * Math.sqrt(sum / (scores.length - 1)) / Math.sqrt(scores.length);
+        }
+    }
+
+    // Results consumed here cannot be optimized away
+    static volatile long sink;
+
+    int warmupIterations = 3;
+    int measurementIterations = 5;
+    long iterationNanos = 1_000_000_000L;
+    Pattern filter = Pattern.compile(".*");
+    String resultFile;
+    final List<Result> results = new ArrayList<>();
+
+    /* Options: -wi n, -i n, -r millis, -rff file.json, and a regex selecting benchmarks */
+    Bench(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-wi") && i + 1 < args.length)
+                warmupIterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-i") && i + 1 < args.length)
+                measurementIterations = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-r") && i + 1 < args.length)
+                iterationNanos = Long.parseLong(args[++i]) * 1_000_000L;
+            else if (args[i].equals("-rff") && i + 1 < args.length)
+                resultFile = args[++i];
+            else
+                filter = Pattern.compile(args[i]);
+        }
+    }
+
+    boolean isSelected(String name) {
+        return filter.matcher(name).find();
+    }
+
+    Result run(String name, String mode, String unit, Map<String, String> params, Iteration iteration)
+            throws Exception {
+        if (!isSelected(name))
+            return null;
+        for (int i = 0; i < warmupIterations; i++)
+            iteration.run();
+        double[] scores = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++)
+            scores[i] = iteration.run();
+        Result result = new Result(name, mode, unit, params, scores);
+        results.add(result);
+        System.out.printf("%-36s %-28s %6s %14.3f +- %10.3f %s%n", name, params, mode,
+                result.score(), result.error(), unit);
+        return result;
+    }
+
+    /*
+     * Average time per call of op, in ns: op is called in batches until the iteration
+     * time is used up.
+     */
+    Result runAverageTime(String name, Map<String, String> params, Op op) throws Exception {
+        return run(name, "avgt", "ns/op", params, () -> {
+            long ops = 0, batch = 1024, value = 0;
+            long start = System.nanoTime(), elapsed;
+            do {
+                for (long i = 0; i < batch; i++)
+                    value += op.call();
+                ops += batch;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < iterationNanos);
+            sink = value;
+            return (double) elapsed / ops;
+        });
+    }
+
+    interface Op {
+        long call() throws Exception;
+    }
+
+    void writeResults() throws IOException {
+        if (resultFile == null)
+            return;
+        try (Writer out = new FileWriter(resultFile)) {
+            out.write("[\n");
+            for (int r = 0; r < results.size(); r++) {
+                Result result = results.get(r);
+                out.write("  {\n");
+                out.write("    \"benchmark\" : \"" + result.name + "\",\n");
+                out.write("    \"mode\" : \"" + result.mode + "\",\n");
+                out.write("    \"threads\" : 1,\n    \"forks\" : 1,\n");
+                out.write("    \"warmupIterations\" : " + warmupIterations + ",\n");
+                out.write("    \"measurementIterations\" : " + measurementIterations + ",\n");
+                out.write("    \"params\" : {");
+                int p = 0;
+                for (Map.Entry<String, String> param: result.params.entrySet())
+                    out.write((p++ > 0 ? ", " : " ") + "\"" + param.getKey() + "\" : \"" + param.getValue() + "\"");
+                out.write(" },\n");
+                out.write("    \"primaryMetric\" : " + metric(result.score(), result.error(), result.unit, result.scores));
+                if (!result.secondary.isEmpty()) {
+                    out.write(",\n    \"secondaryMetrics\" : {");
+                    int s = 0;
+                    for (Map.Entry<String, Double> metric: result.secondary.entrySet())
+                        out.write((s++ > 0 ? ", " : " ") + "\"" + metric.getKey() + "\" : "
+                                + metric(metric.getValue(), Double.NaN, "us", new double[] {metric.getValue()}));
+                    out.write(" }");
+                }
+                out.write("\n  }" + (r + 1 < results.size() ? "," : "") + "\n");
+            }
+            out.write("]\n");
+        }
+        System.out.println("Results written to " + resultFile);
+    }
+
+    private static String metric(double score, double error, String unit, double[] raw) {
+        StringBuilder rawData = new StringBuilder();
+        for (int i = 0; i < raw.length; i++)
+            rawData.append(i > 0 ? ", " : "").append(number(raw[i]));
+        return "{ \"score\" : " + number(score) + ", \"scoreError\" : " + number(error)
+                + ", \"scoreConfidence\" : [ " + number(score - error) + ", " + number(score + error) + " ]"
+                + ", \"scoreUnit\" : \"" + unit + "\", \"rawData\" : [ [ " + rawData + " ] ] }";
+    }
+
+    private static String number(double value) {
+        return Double.isNaN(value) ? "\"NaN\"" : Double.toString(value);
+    }
+
+    static Map<String, String> params(String... pairs) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < pairs.length; i += 2)
+            map.put(pairs[i], pairs[i + 1]);
+        return map;
+    }
+}
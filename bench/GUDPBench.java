@@ -0,0 +1,187 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Benchmarks of the GUDP and VSFtp codecs, and of GUDP transfers over loopback.
+ * Build and run from the repository root:
+ *
+ *   javac -d out/bench src/*.java bench/*.java
+ *   java -cp out/bench GUDPBench [-wi 3] [-i 5] [-r 1000] [-rff result.json] [regex]
+ *
+ * The loopback benchmarks run both ends in process, on the threaded engine
+ * (GUDPSocket over a DatagramSocket) and on the NIO engine (GUDPChannelSocket), with
+ * a fixed send window so that window sizes can be compared. A fixed window does not
+ * back off on loss: once it holds more than the receiving socket buffers (Linux
+ * net.core.rmem_default, 208 KB, is about 90 datagrams of 1000 bytes on loopback),
+ * the excess is dropped and recovered by timeouts, so window=256 with the larger
+ * payloads measures loss recovery rather than throughput.
+ */
+public class GUDPBench {
+    static final int[] PAYLOAD_SIZES = {128, GUDPPacket.MAX_DATA_LEN, GUDPPacket.ETHERNET_SEGMENT_LEN};
+    static final int[] WINDOW_SIZES = {16, 64, 256};
+    static final String[] ENGINES = {"thread", "nio"};
+    static final int THROUGHPUT_BYTES = 16 * 1024 * 1024;
+    static final int LATENCY_MESSAGES = 2000;
+    static final InetSocketAddress LOOPBACK = new InetSocketAddress("127.0.0.1", 9);
+
+    public static void main(String[] args) throws Exception {
+        GUDPLog.setLevel(GUDPLog.Level.WARN);
+        Bench bench = new Bench(args);
+        for (int size: PAYLOAD_SIZES)
+            codec(bench, size);
+        if (bench.isSelected("GUDPBench.loopback")) {
+            GUDPEventLoopGroup group = new GUDPEventLoopGroup(2);
+            try {
+                for (String engine: ENGINES)
+                    for (int size: PAYLOAD_SIZES) {
+                        for (int window: WINDOW_SIZES)
+                            throughput(bench, engine, group, size, window);
+                        latency(bench, engine, group, size);
+                    }
+            } finally {
+                group.close();
+            }
+        }
+        bench.writeResults();
+    }
+
+    /* Encapsulation and parsing of one packet of each layer */
+    static void codec(Bench bench, int size) throws Exception {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        DatagramPacket appPacket = new DatagramPacket(data, size, LOOPBACK);
+        GUDPPacket pooled = GUDPPacket.allocate(GUDPPacket.MAX_SEGMENT_LEN);
+        GUDPPacket gudpPacket = GUDPPacket.encapsulate(appPacket);
+        gudpPacket.setSeqno(1);
+        DatagramPacket wire = new DatagramPacket(gudpPacket.getBytes().clone(), GUDPPacket.HEADER_SIZE + size, LOOPBACK);
+        DatagramPacket out = new DatagramPacket(new byte[size], size);
+        byte[] vsWire = new VSFtp(VSFtp.TYPE_DATA, data, size).getBytes();
+        DatagramPacket vsPacket = new DatagramPacket(vsWire, vsWire.length, LOOPBACK);
+        String payload = Integer.toString(size);
+
+        bench.runAverageTime("GUDPBench.encapsulate", Bench.params("payload", payload),
+                () -> GUDPPacket.encapsulate(appPacket).getPayloadLength());
+        bench.runAverageTime("GUDPBench.encapsulateFrom", Bench.params("payload", payload), () -> {
+            pooled.encapsulateFrom(appPacket);
+            return pooled.getPayloadLength();
+        });
+        bench.runAverageTime("GUDPBench.pack", Bench.params("payload", payload),
+                () -> gudpPacket.pack().getLength());
+        bench.runAverageTime("GUDPBench.unpack", Bench.params("payload", payload),
+                () -> GUDPPacket.unpack(wire).getSeqno());
+        bench.runAverageTime("GUDPBench.decapsulate", Bench.params("payload", payload), () -> {
+            gudpPacket.decapsulate(out);
+            return out.getLength();
+        });
+        bench.runAverageTime("GUDPBench.vsftpEncode", Bench.params("payload", payload),
+                () -> new VSFtp(VSFtp.TYPE_DATA, data, size).getBytes().length);
+        bench.runAverageTime("GUDPBench.vsftpParse", Bench.params("payload", payload),
+                () -> new VSFtp(vsPacket).getData().length);
+    }
+
+    /* Window of a fixed number of packets, whatever the loss */
+    static CongestionControl fixedWindow(int window) {
+        return new CongestionControl() {
+            public int getWindow() { return window; }
+            public void onAck(int ackedPackets, long rttNanos) { }
+            public void onLoss() { }
+            public void onTimeout() { }
+        };
+    }
+
+    /* A sender and a receiver socket on the loopback interface, and the receiver's address */
+    static class Pair {
+        final GUDPSocket sender;
+        final GUDPSocket receiver;
+        final InetSocketAddress destination;
+
+        Pair(String engine, GUDPEventLoopGroup group, int window) throws Exception {
+            InetSocketAddress local = new InetSocketAddress("127.0.0.1", 0);
+            if (engine.equals("nio")) {
+                GUDPChannelSocket channel = GUDPChannelSocket.open(group, local);
+                receiver = channel;
+                destination = channel.getLocalAddress();
+                sender = GUDPChannelSocket.open(group, local);
+            } else {
+                DatagramSocket socket = new DatagramSocket(local);
+                receiver = new GUDPSocket(socket);
+                destination = (InetSocketAddress) socket.getLocalSocketAddress();
+                sender = new GUDPSocket(new DatagramSocket(local));
+            }
+            sender.setDestinations(List.of(destination));
+            if (window > 0)
+                sender.setCongestionControl(fixedWindow(window));
+        }
+
+        void close() throws Exception {
+            sender.close();
+            sender.awaitSendComplete();
+            receiver.close();
+        }
+    }
+
+    /* Payload bytes per second from the first send() to the last receive(), in MB/s */
+    static void throughput(Bench bench, String engine, GUDPEventLoopGroup group, int size, int window)
+            throws Exception {
+        int count = THROUGHPUT_BYTES / size;
+        bench.run("GUDPBench.loopbackThroughput", "thrpt", "MB/s", Bench.params("engine", engine,
+                "payload", Integer.toString(size), "window", Integer.toString(window)), () -> {
+            Pair pair = new Pair(engine, group, window);
+            GUDPSocket sender = pair.sender, receiver = pair.receiver;
+            InetSocketAddress destination = pair.destination;
+            Thread sending = new Thread(() -> {
+                try {
+                    DatagramPacket packet = new DatagramPacket(new byte[size], size, destination);
+                    for (int i = 0; i < count; i++)
+                        sender.send(packet);
+                    sender.finish();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "Bench Sender");
+
+            DatagramPacket in = new DatagramPacket(new byte[size], size);
+            long start = System.nanoTime();
+            sending.start();
+            for (int i = 0; i < count; i++)
+                receiver.receive(in);
+            long elapsed = System.nanoTime() - start;
+            sending.join();
+            pair.close();
+            return (double) count * size / 1e6 / (elapsed / 1e9);
+        });
+    }
+
+    /*
+     * Time from send() of one message to its receive() on the other end, one message
+     * at a time, in us: the mean as the score, the percentiles as secondary metrics.
+     */
+    static void latency(Bench bench, String engine, GUDPEventLoopGroup group, int size) throws Exception {
+        long[] samples = new long[LATENCY_MESSAGES];
+        Bench.Result result = bench.run("GUDPBench.loopbackLatency", "sample", "us",
+                Bench.params("engine", engine, "payload", Integer.toString(size)), () -> {
+            Pair pair = new Pair(engine, group, 0);
+            GUDPSocket sender = pair.sender, receiver = pair.receiver;
+            DatagramPacket out = new DatagramPacket(new byte[size], size, pair.destination);
+            DatagramPacket in = new DatagramPacket(new byte[size], size);
+            for (int i = 0; i < LATENCY_MESSAGES; i++) {
+                long start = System.nanoTime();
+                sender.send(out);
+                receiver.receive(in);
+                samples[i] = System.nanoTime() - start;
+            }
+            pair.close();
+            return Arrays.stream(samples).average().orElse(0) / 1e3;
+        });
+        if (result != null) {
+            // Percentiles of the last measured iteration
+            Arrays.sort(samples);
+            result.secondary.put("p50", samples[LATENCY_MESSAGES / 2] / 1e3);
+            result.secondary.put("p99", samples[LATENCY_MESSAGES * 99 / 100] / 1e3);
+            result.secondary.put("p99.9", samples[LATENCY_MESSAGES * 999 / 1000] / 1e3);
+        }
+    }
+}
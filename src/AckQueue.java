@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Single-producer/single-consumer lock-free queue of ACKs, carrying primitive
+ * ints only: the ACK receiver thread offers, the sender thread polls. Each record
+ * holds the index of the destination the ACK came from, the cumulative ACK, the
+ * maximum segment size option and up to MAX_SACK_BLOCKS [start, end) pairs in a
+ * fixed slot of a preallocated int array, so the handoff allocates nothing.
+ */
+public class AckQueue {
+    public static final int DEFAULT_CAPACITY = 1024;
+    private static final int RECORD_INTS = 4 + 2 * GUDPPacket.MAX_SACK_BLOCKS;
+
+    private final int[] records;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();  // next record to poll, written by consumer
+    private final AtomicLong tail = new AtomicLong();  // next record to offer, written by producer
+    private long headCache;                            // producer's view of head
+
+    public AckQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        records = new int[size * RECORD_INTS];
+        mask = size - 1;
+    }
+
+    /*
+     * Producer side. Returns false if the queue is full and the ACK was dropped;
+     * a later cumulative ACK covers for it.
+     */
+    public boolean offer(int peer, GUDPPacket ack) {
+        long t = tail.get();
+        if (t - headCache > mask) {
+            headCache = head.get();
+            if (t - headCache > mask)
+                return false;
+        }
+        int base = (int) (t & mask) * RECORD_INTS;
+        int blocks = Math.min(ack.getSackBlockCount(), GUDPPacket.MAX_SACK_BLOCKS);
+        records[base] = blocks;
+        records[base + 1] = peer;
+        records[base + 2] = ack.getSeqno();
+        records[base + 3] = ack.getAckMSS();
+        for (int b = 0; b < blocks; b++) {
+            records[base + 4 + 2 * b] = ack.getSackStart(b);
+            records[base + 5 + 2 * b] = ack.getSackEnd(b);
+        }
+        tail.lazySet(t + 1);    // publishes the record
+        return true;
+    }
+
+    /*
+     * Consumer side. Copies the oldest record into dst: dst[0] is the destination index,
+     * dst[1] the cumulative ACK, dst[2] the maximum segment size or 0, followed by the
+     * SACK pairs. Returns the number of SACK blocks, or -1 if empty.
+     */
+    public int poll(int[] dst) {
+        long h = head.get();
+        if (h == tail.get())
+            return -1;
+        int base = (int) (h & mask) * RECORD_INTS;
+        int blocks = records[base];
+        System.arraycopy(records, base + 1, dst, 0, 3 + 2 * blocks);
+        head.lazySet(h + 1);
+        return blocks;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /* Record size for the dst array of poll() */
+    public static int recordSize() {
+        return RECORD_INTS - 1;
+    }
+}
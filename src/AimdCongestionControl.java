@@ -0,0 +1,56 @@
+/*
+ * Reno style congestion control: slow start until ssthresh, then additive
+ * increase by one packet per window and multiplicative decrease on loss.
+ */
+public class AimdCongestionControl implements CongestionControl {
+    private static final int MIN_WINDOW = 1;
+    private static final int MIN_SSTHRESH = 2;
+
+    private final int maxWindow;
+    private double cwnd;
+    private int ssthresh;
+
+    public AimdCongestionControl() {
+        this(GUDPPacket.INITIAL_WINDOW_SIZE, GUDPPacket.MAX_WINDOW_SIZE);
+    }
+
+    public AimdCongestionControl(int initialWindow, int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.cwnd = Math.min(initialWindow, maxWindow);
+        this.ssthresh = maxWindow;
+    }
+
+    public synchronized int getWindow() {
+        return Math.max(MIN_WINDOW, (int) cwnd);
+    }
+
+    public synchronized int getSlowStartThreshold() {
+        return ssthresh;
+    }
+
+    public synchronized void onAck(int ackedPackets, long rttNanos) {
+        for (int i = 0; i < ackedPackets; i++) {
+            if (cwnd < ssthresh)
+                cwnd += 1;              // slow start: double per RTT
+            else
+                cwnd += 1 / cwnd;       // congestion avoidance: one packet per RTT
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    public synchronized void onLoss() {
+        ssthresh = Math.max(MIN_SSTHRESH, getWindow() / 2);
+        cwnd = ssthresh;
+    }
+
+    public synchronized void onTimeout() {
+        ssthresh = Math.max(MIN_SSTHRESH, getWindow() / 2);
+        cwnd = MIN_WINDOW;
+    }
+
+    /* Twice the window per RTT in slow start, so pacing does not hold back its growth */
+    public synchronized double getPacingRate(long srttNanos, int packetBytes) {
+        double gain = cwnd < ssthresh ? 2.0 : 1.25;
+        return gain * getWindow() * packetBytes * 1e9 / srttNanos;
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Disk writer stage for received files. Chunks are written by offset through a
+ * FileChannel on a thread of their own, so the packet thread never waits for the
+ * disk. Consecutive chunks of a file are gathered into one positional write, and
+ * files are grown in extents ahead of the data. The queue is bounded: when the disk
+ * falls behind, write() blocks and the receive window passes the back-pressure on
+ * to the sender.
+ */
+public class AsyncFileWriter implements Runnable {
+    public static final int DEFAULT_QUEUE_CHUNKS = 4096;
+    private static final int BATCH_BYTES = 256 * 1024;
+    private static final long EXTENT_BYTES = 4 * 1024 * 1024;
+
+    private final BlockingQueue<Chunk> queue;
+    private final ArrayList<Chunk> drained = new ArrayList<>();
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_BYTES);
+    private Target batchTarget;
+    private long batchPosition;
+
+    /* One file being written */
+    static class Target {
+        final String filename;
+        final RandomAccessFile file;
+        final FileChannel channel;
+        long size;          // end of the data written, writer thread only
+        long allocated;     // file length reserved, writer thread only
+        volatile IOException failure;
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        Target(String filename) throws IOException {
+            this.filename = filename;
+            file = new RandomAccessFile(filename, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+        }
+    }
+
+    private static class Chunk {
+        final Target target;
+        final long position;
+        final byte[] data;
+        final int length;   // -1 closes the target
+
+        Chunk(Target target, long position, byte[] data, int length) {
+            this.target = target;
+            this.position = position;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    public AsyncFileWriter(int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+        Thread thread = new Thread(this, "File Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Target open(String filename) throws IOException {
+        return new Target(filename);
+    }
+
+    /* Queue length bytes of data for position in the file; the array is not copied */
+    public void write(Target target, long position, byte[] data, int length) throws IOException {
+        check(target);
+        put(new Chunk(target, position, data, length));
+    }
+
+    /* Wait until everything queued for the file is on disk, then close it */
+    public void close(Target target) throws IOException {
+        put(new Chunk(target, 0, null, -1));
+        try {
+            target.closed.await();
+        } catch (InterruptedException e) { throw new IOException(e); }
+        check(target);
+    }
+
+    private void put(Chunk chunk) throws IOException {
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) { throw new IOException(e); }
+    }
+
+    private void check(Target target) throws IOException {
+        if (target.failure != null)
+            throw new IOException("Write to " + target.filename + " failed", target.failure);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                drained.add(queue.take());
+                queue.drainTo(drained);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Chunk chunk: drained) {
+                if (chunk.length < 0)
+                    finish(chunk.target);
+                else if (chunk.target.failure == null)
+                    append(chunk);
+            }
+            drained.clear();
+            flush();
+        }
+    }
+
+    /* Add a chunk to the batch, writing the batch out when the chunk does not follow it */
+    private void append(Chunk chunk) {
+        if (batchTarget != null && (batchTarget != chunk.target
+                || batchPosition + batch.position() != chunk.position
+                || batch.remaining() < chunk.length))
+            flush();
+        if (chunk.length > batch.capacity()) {
+            writeAt(chunk.target, ByteBuffer.wrap(chunk.data, 0, chunk.length), chunk.position);
+            return;
+        }
+        if (batchTarget == null) {
+            batchTarget = chunk.target;
+            batchPosition = chunk.position;
+        }
+        batch.put(chunk.data, 0, chunk.length);
+    }
+
+    private void flush() {
+        if (batchTarget == null)
+            return;
+        batch.flip();
+        writeAt(batchTarget, batch, batchPosition);
+        batch.clear();
+        batchTarget = null;
+    }
+
+    private void writeAt(Target target, ByteBuffer data, long position) {
+        try {
+            long end = position + data.remaining();
+            // Reserve the file ahead of the data instead of growing it at every write
+            if (end > target.allocated) {
+                target.allocated = Math.max(end, target.allocated + EXTENT_BYTES);
+                target.file.setLength(target.allocated);
+            }
+            while (data.hasRemaining())
+                position += target.channel.write(data, position);
+            target.size = Math.max(target.size, end);
+        } catch (IOException e) {
+            target.failure = e;
+        }
+    }
+
+    /* Write out what is batched, trim the reserved extent and close */
+    private void finish(Target target) {
+        if (batchTarget == target)
+            flush();
+        try {
+            target.channel.truncate(target.size);
+            target.file.close();
+        } catch (IOException e) {
+            if (target.failure == null)
+                target.failure = e;
+        }
+        target.closed.countDown();
+    }
+}
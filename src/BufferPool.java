@@ -0,0 +1,31 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/*
+ * Bounded pool of reusable packet buffers. take() hands out a pooled object, or a
+ * new one when the pool runs dry; give() returns it and drops it if the pool is
+ * full. The backing array queue does not allocate per operation, so a pool in
+ * steady state keeps the packet paths free of garbage.
+ */
+public class BufferPool<T> {
+    private final ArrayBlockingQueue<T> free;
+    private final Supplier<T> factory;
+
+    public BufferPool(int capacity, Supplier<T> factory) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.factory = factory;
+    }
+
+    public T take() {
+        T item = free.poll();
+        return item != null ? item : factory.get();
+    }
+
+    public void give(T item) {
+        free.offer(item);
+    }
+
+    public int available() {
+        return free.size();
+    }
+}
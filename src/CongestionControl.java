@@ -0,0 +1,32 @@
+/*
+ * Congestion control engine of the GUDP sender. The sender reports ACKs and
+ * loss signals, and reads back the number of packets it may keep in flight.
+ * Slow start plus AIMD is provided by AimdCongestionControl; other schemes
+ * (CUBIC, BBR-style rate based controllers) plug in through the same calls.
+ */
+public interface CongestionControl {
+
+    /* Send window in packets */
+    public int getWindow();
+
+    /*
+     * New data was acknowledged. ackedPackets is the number of packets newly
+     * acknowledged, rttNanos the RTT sample taken from this ACK or -1 if there was none.
+     */
+    public void onAck(int ackedPackets, long rttNanos);
+
+    /* Loss detected from ACK information (fast retransmit), the path is still delivering */
+    public void onLoss();
+
+    /* Retransmission timer expired for the oldest outstanding packet */
+    public void onTimeout();
+
+    /*
+     * Rate for the sender to pace its packets at, in bytes per second, given the
+     * smoothed RTT and the packet size. By default the window is spread over a bit
+     * less than one RTT; rate based controllers return their own estimate.
+     */
+    public default double getPacingRate(long srttNanos, int packetBytes) {
+        return 1.25 * getWindow() * packetBytes * 1e9 / srttNanos;
+    }
+}
@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jdk.net.ExtendedSocketOptions;
+
+/*
+ * GUDP session on a non-blocking DatagramChannel, driven by a shared GUDPEventLoop
+ * instead of dedicated threads. The protocol state is the same as GUDPSocket's;
+ * only the engine hooks differ: input is read by the loop when the channel is
+ * readable, the sender runs a pass whenever it is woken up or a retransmission
+ * deadline expires, and packet buffers are direct.
+ */
+public class GUDPChannelSocket extends GUDPSocket {
+    final DatagramChannel channel;
+    final GUDPEventLoop loop;
+    SelectionKey key;
+
+    // Event loop bookkeeping
+    final AtomicBoolean isScheduled = new AtomicBoolean();
+    long wakeupDeadline;
+    boolean isWakeupQueued;
+    private volatile IOException failure;
+
+    public GUDPChannelSocket(GUDPEventLoop loop, InetSocketAddress local) throws IOException {
+        super((DatagramSocket) null);
+        this.loop = loop;
+        this.channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(local);
+        // One input path serves DATA for the receiver and ACKs for the sender
+        receive.ACKBuffer_Recv = send.ACKBuffer;
+        loop.register(this);
+    }
+
+    public static GUDPChannelSocket open(GUDPEventLoopGroup group, InetSocketAddress local) throws IOException {
+        return new GUDPChannelSocket(group.next(), local);
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    void startSender() throws IOException {
+        checkFailure();
+        loop.schedule(this);
+    }
+
+    void startReceiver() throws IOException {
+        checkFailure();
+    }
+
+    void wakeSender() {
+        loop.schedule(this);
+    }
+
+    /* A full socket buffer drops the datagram, recovered like any other loss */
+    void transmit(GUDPPacket packet) throws IOException {
+        channel.send(packet.datagramBuffer(), packet.getSocketAddress());
+    }
+
+    /* Never block the loop: when receive() falls behind, keep packets in the reorder buffer */
+    boolean deliver(GUDPPacket packet) {
+        return receive.ReceiveQueue.offer(packet);
+    }
+
+    void receiveQueueDrained() throws IOException {
+        checkFailure();
+        loop.schedule(this);
+    }
+
+    GUDPPacket newPacket() {
+        return GUDPPacket.allocateDirect(Max_segment);
+    }
+
+    void setDontFragment() throws IOException {
+        channel.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+    }
+
+    /* No receive thread here: the receive side stops with the channel */
+    void closeSocket() {
+        loop.execute(() -> {
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+                receiverStopped(null);
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /* Loop thread: read up to batch datagrams */
+    void onReadable(int batch) throws IOException, InterruptedException {
+        for (int i = 0; i < batch; i++) {
+            GUDPPacket gudppacket = receive.Pool.take();
+            ByteBuffer buffer = gudppacket.receiveByteBuffer();
+            SocketAddress source = channel.receive(buffer);
+            if (source == null) {
+                receive.Pool.give(gudppacket);
+                return;
+            }
+            gudppacket.load(buffer.position(), (InetSocketAddress) source);
+            if (!receive.process(gudppacket))
+                receive.Pool.give(gudppacket);
+        }
+    }
+
+    /* Loop thread: catch up on delivery and run a sender pass */
+    void service() throws IOException, InterruptedException {
+        receive.resume();
+        if (isSending) {
+            send.step();
+            long deadline = send.nextDeadline();
+            if (deadline != Long.MAX_VALUE)
+                loop.scheduleAt(this, deadline);
+        }
+    }
+
+    void fail(Exception e) {
+        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+        GUDPLog.error("Exception in GUDP session");
+        e.printStackTrace();
+        send.fail(failure);
+        sendCompletion.completeExceptionally(failure);
+        receiverStopped(failure);
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * One event loop thread with a Selector, serving any number of GUDPChannelSocket
+ * sessions: datagram input, sender passes woken up by the application, and the
+ * sessions' retransmission deadlines all run on this thread.
+ */
+public class GUDPEventLoop implements Runnable {
+    private static final int MAX_READ_BATCH = 64;  // datagrams per session per select, for fairness
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Queue<GUDPChannelSocket> ready = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<GUDPChannelSocket> wakeups =
+            new PriorityQueue<>(Comparator.comparingLong((GUDPChannelSocket s) -> s.wakeupDeadline));
+    private volatile boolean isRunning;
+
+    public GUDPEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        isRunning = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /* Run a task on the loop thread */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(GUDPChannelSocket session) {
+        execute(() -> {
+            try {
+                session.key = session.channel.register(selector, SelectionKey.OP_READ, session);
+            } catch (IOException e) {
+                session.fail(e);
+            }
+        });
+    }
+
+    /* Have the loop service the session soon; callable from any thread */
+    void schedule(GUDPChannelSocket session) {
+        if (session.isScheduled.compareAndSet(false, true)) {
+            ready.add(session);
+            if (Thread.currentThread() != thread)
+                selector.wakeup();
+        }
+    }
+
+    /* Service the session at a System.nanoTime() deadline; loop thread only */
+    void scheduleAt(GUDPChannelSocket session, long deadline) {
+        if (session.isWakeupQueued) {
+            if (session.wakeupDeadline - deadline <= 0)
+                return;
+            wakeups.remove(session);
+        }
+        session.wakeupDeadline = deadline;
+        session.isWakeupQueued = true;
+        wakeups.add(session);
+    }
+
+    public void run() {
+        while (isRunning) {
+            try {
+                if (!tasks.isEmpty() || !ready.isEmpty()) {
+                    selector.selectNow();
+                } else {
+                    GUDPChannelSocket next = wakeups.peek();
+                    if (next == null) {
+                        selector.select();
+                    } else {
+                        long delay = next.wakeupDeadline - System.nanoTime();
+                        if (delay <= 0)
+                            selector.selectNow();
+                        else
+                            selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay + 999_999)));
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    GUDPChannelSocket session = (GUDPChannelSocket) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        try {
+                            session.onReadable(MAX_READ_BATCH);
+                            session.service();
+                        } catch (IOException | InterruptedException e) {
+                            session.fail(e);
+                        }
+                    }
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+
+                GUDPChannelSocket session;
+                while ((session = ready.poll()) != null) {
+                    session.isScheduled.set(false);
+                    try {
+                        session.service();
+                    } catch (IOException | InterruptedException e) {
+                        session.fail(e);
+                    }
+                }
+
+                long now = System.nanoTime();
+                while ((session = wakeups.peek()) != null && session.wakeupDeadline - now <= 0) {
+                    wakeups.poll();
+                    session.isWakeupQueued = false;
+                    try {
+                        session.service();
+                    } catch (IOException | InterruptedException e) {
+                        session.fail(e);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (isRunning) {
+                    GUDPLog.error("Exception in GUDP event loop");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    public void close() throws IOException {
+        isRunning = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) { throw new IOException(e); }
+        selector.close();
+    }
+}
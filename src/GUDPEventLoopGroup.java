@@ -0,0 +1,26 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Fixed set of event loops shared by GUDPChannelSocket sessions; new sessions are
+ * spread over the loops round robin.
+ */
+public class GUDPEventLoopGroup {
+    private final GUDPEventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    public GUDPEventLoopGroup(int threads) throws IOException {
+        loops = new GUDPEventLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = new GUDPEventLoop("GUDP Event Loop " + i);
+    }
+
+    public GUDPEventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    public void close() throws IOException {
+        for (GUDPEventLoop loop: loops)
+            loop.close();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Logging of the GUDP sockets, switchable by level. Per-packet events are at DEBUG,
+ * which is off by default: callers on the packet paths test isDebug() before they
+ * build a message, so a disabled log costs one volatile read. The level comes from
+ * the gudp.log system property (error, warn, info, debug), INFO if unset.
+ */
+public class GUDPLog {
+    public enum Level {ERROR, WARN, INFO, DEBUG}
+
+    private static volatile Level level = initialLevel();
+
+    private static Level initialLevel() {
+        String name = System.getProperty("gudp.log");
+        if (name == null)
+            return Level.INFO;
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public static void setLevel(Level newlevel) {
+        level = newlevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(Level atlevel) {
+        return atlevel.compareTo(level) <= 0;
+    }
+
+    public static boolean isDebug() {
+        return level == Level.DEBUG;
+    }
+
+    public static void debug(String message) {
+        if (isEnabled(Level.DEBUG))
+            System.out.println(message);
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO))
+            System.out.println(message);
+    }
+
+    public static void warn(String message) {
+        if (isEnabled(Level.WARN))
+            System.out.println(message);
+    }
+
+    /* Errors go to stderr, as the exception reports they come with */
+    public static void error(String message) {
+        System.err.println(message);
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Counters, histograms and gauges of one GUDP socket. The packet paths record into
+ * them without locks or allocation; readers take a snapshot() or go through JMX
+ * after register(). Sender counts include all destinations, retransmissions and
+ * parity; goodput is payload bytes ACKed, or delivered to receive(), per second
+ * since the first packet.
+ */
+public class GUDPMetrics implements GUDPMetricsMBean {
+    // Sender
+    final LongAdder Packets_sent = new LongAdder();
+    final LongAdder Bytes_sent = new LongAdder();
+    final LongAdder Retransmissions = new LongAdder();
+    final LongAdder Fast_retransmissions = new LongAdder();
+    final LongAdder Timeouts = new LongAdder();
+    final LongAdder Parity_sent = new LongAdder();
+    final LongAdder ACKs_received = new LongAdder();
+    final LongAdder Acked_bytes = new LongAdder();
+    // Receiver
+    final LongAdder Packets_received = new LongAdder();
+    final LongAdder Bytes_received = new LongAdder();
+    final LongAdder Duplicates = new LongAdder();
+    final LongAdder Packets_rebuilt = new LongAdder();
+    final LongAdder ACKs_sent = new LongAdder();
+    final LongAdder Delivered_bytes = new LongAdder();
+
+    final Histogram RTT = new Histogram();
+    final Histogram RTO = new Histogram();
+
+    // System.nanoTime() of the first packet sent and received, 0 before
+    private final AtomicLong Send_start = new AtomicLong();
+    private final AtomicLong Receive_start = new AtomicLong();
+    private final IntSupplier window;
+
+    public GUDPMetrics(IntSupplier window) {
+        this.window = window;
+    }
+
+    /*
+     * Latency histogram with power-of-two buckets in microseconds: bucket 0 counts
+     * values under 2 us, bucket i values in [2^i, 2^(i+1)) us.
+     */
+    public static class Histogram {
+        public static final int BUCKETS = 32;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        public void record(long nanos) {
+            long micros = Math.max(1, nanos / 1000);
+            int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(bucket);
+        }
+
+        public long[] counts() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                copy[i] = counts.get(i);
+            return copy;
+        }
+
+        /* Upper bound of the bucket holding the given quantile, in us; 0 if empty */
+        public long quantileMicros(double quantile) {
+            long[] copy = counts();
+            long total = 0;
+            for (long count: copy)
+                total += count;
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += copy[i];
+                if (seen >= rank)
+                    return 1L << (i + 1);
+            }
+            return 1L << BUCKETS;
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++)
+                counts.set(i, 0);
+        }
+    }
+
+    void sent(int bytes) {
+        Packets_sent.increment();
+        Bytes_sent.add(bytes);
+        if (Send_start.get() == 0)
+            Send_start.compareAndSet(0, System.nanoTime());
+    }
+
+    void received(int bytes) {
+        Packets_received.increment();
+        Bytes_received.add(bytes);
+        if (Receive_start.get() == 0)
+            Receive_start.compareAndSet(0, System.nanoTime());
+    }
+
+    /* A point-in-time copy of all metrics */
+    public static class Snapshot {
+        public final long packetsSent, bytesSent, retransmissions, fastRetransmissions,
+                timeouts, paritySent, acksReceived, ackedBytes;
+        public final long packetsReceived, bytesReceived, duplicates, packetsRebuilt,
+                acksSent, deliveredBytes;
+        public final int windowSize;
+        public final double sendGoodput, receiveGoodput;
+        public final long[] rttMicros, rtoMicros;
+
+        Snapshot(GUDPMetrics metrics) {
+            packetsSent = metrics.getPacketsSent();
+            bytesSent = metrics.getBytesSent();
+            retransmissions = metrics.getRetransmissions();
+            fastRetransmissions = metrics.getFastRetransmissions();
+            timeouts = metrics.getTimeouts();
+            paritySent = metrics.getParitySent();
+            acksReceived = metrics.getAcksReceived();
+            ackedBytes = metrics.getAckedBytes();
+            packetsReceived = metrics.getPacketsReceived();
+            bytesReceived = metrics.getBytesReceived();
+            duplicates = metrics.getDuplicates();
+            packetsRebuilt = metrics.getPacketsRebuilt();
+            acksSent = metrics.getAcksSent();
+            deliveredBytes = metrics.getDeliveredBytes();
+            windowSize = metrics.getWindowSize();
+            sendGoodput = metrics.getSendGoodput();
+            receiveGoodput = metrics.getReceiveGoodput();
+            rttMicros = metrics.RTT.counts();
+            rtoMicros = metrics.RTO.counts();
+        }
+
+        public String toString() {
+            return String.format("sent %d pkts %d bytes, retrans %d (fast %d), timeouts %d, parity %d, "
+                            + "ACKs in %d, received %d pkts %d bytes, dups %d, rebuilt %d, ACKs out %d, "
+                            + "window %d, goodput out %.0f B/s in %.0f B/s",
+                    packetsSent, bytesSent, retransmissions, fastRetransmissions, timeouts, paritySent,
+                    acksReceived, packetsReceived, bytesReceived, duplicates, packetsRebuilt, acksSent,
+                    windowSize, sendGoodput, receiveGoodput);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /* Publish on the platform MBean server as GUDP:type=Socket,name=name */
+    public ObjectName register(String name) throws IOException {
+        try {
+            ObjectName objectName = new ObjectName("GUDP:type=Socket,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public void unregister(ObjectName objectName) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static double perSecond(long value, long start) {
+        long elapsed = System.nanoTime() - start;
+        if (start == 0 || elapsed <= 0)
+            return 0;
+        return value * 1e9 / elapsed;
+    }
+
+    public long getPacketsSent() { return Packets_sent.sum(); }
+    public long getBytesSent() { return Bytes_sent.sum(); }
+    public long getRetransmissions() { return Retransmissions.sum(); }
+    public long getFastRetransmissions() { return Fast_retransmissions.sum(); }
+    public long getTimeouts() { return Timeouts.sum(); }
+    public long getParitySent() { return Parity_sent.sum(); }
+    public long getAcksReceived() { return ACKs_received.sum(); }
+    public long getAckedBytes() { return Acked_bytes.sum(); }
+
+    public long getPacketsReceived() { return Packets_received.sum(); }
+    public long getBytesReceived() { return Bytes_received.sum(); }
+    public long getDuplicates() { return Duplicates.sum(); }
+    public long getPacketsRebuilt() { return Packets_rebuilt.sum(); }
+    public long getAcksSent() { return ACKs_sent.sum(); }
+    public long getDeliveredBytes() { return Delivered_bytes.sum(); }
+
+    public int getWindowSize() { return window.getAsInt(); }
+    public double getSendGoodput() { return perSecond(getAckedBytes(), Send_start.get()); }
+    public double getReceiveGoodput() { return perSecond(getDeliveredBytes(), Receive_start.get()); }
+    public long getRttMedianMicros() { return RTT.quantileMicros(0.5); }
+    public long getRtt99Micros() { return RTT.quantileMicros(0.99); }
+    public long getRtoMedianMicros() { return RTO.quantileMicros(0.5); }
+    public long getRto99Micros() { return RTO.quantileMicros(0.99); }
+
+    /* Counters and histograms back to zero; goodput starts over with the next packet */
+    public void reset() {
+        for (LongAdder counter: new LongAdder[] {Packets_sent, Bytes_sent, Retransmissions,
+                Fast_retransmissions, Timeouts, Parity_sent, ACKs_received, Acked_bytes,
+                Packets_received, Bytes_received, Duplicates, Packets_rebuilt, ACKs_sent, Delivered_bytes})
+            counter.reset();
+        RTT.reset();
+        RTO.reset();
+        Send_start.set(0);
+        Receive_start.set(0);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * JMX view of the metrics of one GUDP socket, see GUDPMetrics.
+ */
+public interface GUDPMetricsMBean {
+    public long getPacketsSent();
+    public long getBytesSent();
+    public long getRetransmissions();
+    public long getFastRetransmissions();
+    public long getTimeouts();
+    public long getParitySent();
+    public long getAcksReceived();
+    public long getAckedBytes();
+
+    public long getPacketsReceived();
+    public long getBytesReceived();
+    public long getDuplicates();
+    public long getPacketsRebuilt();
+    public long getAcksSent();
+    public long getDeliveredBytes();
+
+    public int getWindowSize();
+    public double getSendGoodput();
+    public double getReceiveGoodput();
+    public long getRttMedianMicros();
+    public long getRtt99Micros();
+    public long getRtoMedianMicros();
+    public long getRto99Micros();
+
+    public void reset();
+}
@@ -9,14 +9,62 @@ public class GUDPPacket {
     public static final short HEADER_SIZE = 8;
     public static final Integer MAX_DATA_LEN = 1000;
     public static final Integer MAX_DATAGRAM_LEN = MAX_DATA_LEN + HEADER_SIZE;  
-    public static final Integer MAX_WINDOW_SIZE = 3;
+    // Negotiated segment sizes: a 1500-byte Ethernet MTU and a 9000-byte jumbo frame,
+    // less the IPv4 and UDP headers (28 bytes) and the GUDP header
+    public static final int ETHERNET_SEGMENT_LEN = 1500 - 28 - HEADER_SIZE;
+    public static final int JUMBO_SEGMENT_LEN = 9000 - 28 - HEADER_SIZE;
+    public static final int MAX_SEGMENT_LEN = JUMBO_SEGMENT_LEN;
+    public static final int MSS_OPTION_SIZE = 4;
+    public static final int BSN_OPTION_SIZE = 8;
+    public static final int BSN_FLAG_FEC = 1;
+    // ACKs that repeat the MSS answer once data flows, so that losing one does not
+    // pass a negotiating receiver off as one that does not negotiate
+    public static final int MSS_OPTION_ACKS = 8;
+    public static final Integer INITIAL_WINDOW_SIZE = 3;
+    // Receive window, and buffer slots per session; rounded up to a power of two
+    public static final Integer MAX_WINDOW_SIZE = 4096;
     public static final short TYPE_DATA = 1;
     public static final short TYPE_BSN = 2;
     public static final short TYPE_ACK = 3; 
+    public static final short TYPE_BUNDLE = 4;
+    public static final int FRAME_HEADER_SIZE = 2;
+    public static final short TYPE_PARITY = 5;
+    public static final int PARITY_HEADER_SIZE = 12;
+    public static final int MAX_FEC_BLOCK = 32;
+    public static final int MAX_SACK_BLOCKS = 4;
+    public static final int SACK_BLOCK_SIZE = 8;
 
     private InetSocketAddress sockaddr;
     private ByteBuffer byteBuffer;
-    private Integer payloadLength;
+    private int payloadLength;
+    private DatagramPacket datagram;    // reused by pack() and receiveBuffer()
+
+    /*
+     * Allocate a reusable packet with room for a full datagram, for buffer pools.
+     */
+    public static GUDPPacket allocate() {
+        return allocate(MAX_DATA_LEN);
+    }
+
+    public static GUDPPacket allocate(int maxPayload) {
+        ByteBuffer buffer = ByteBuffer.allocate(maxPayload + HEADER_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return new GUDPPacket(buffer);
+    }
+
+    /*
+     * Same, backed by a direct buffer for channel I/O. Such a packet has no backing
+     * array: use datagramBuffer() and receiveByteBuffer() instead of pack() and getBytes().
+     */
+    public static GUDPPacket allocateDirect() {
+        return allocateDirect(MAX_DATA_LEN);
+    }
+
+    public static GUDPPacket allocateDirect(int maxPayload) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(maxPayload + HEADER_SIZE);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        return new GUDPPacket(buffer);
+    }
 
     /* 
      * Application send processing: Build a DATA GUDP packet to encaspulate payload
@@ -36,17 +84,93 @@ public class GUDPPacket {
         return gudppacket;
     }
 
+    /*
+     * Application send processing into this (pooled) packet: same as encapsulate(),
+     * without allocating.
+     */
+    public void encapsulateFrom(DatagramPacket packet) throws IOException {
+        if (packet.getLength() + HEADER_SIZE > byteBuffer.capacity())
+            throw new IOException(String.format("Too long payload: %d bytes", packet.getLength()));
+        setType(TYPE_DATA);
+        setVersion(GUDP_VERSION);
+        setPayload(packet.getData(), packet.getOffset(), packet.getLength());
+        setSocketAddress((InetSocketAddress) packet.getSocketAddress());
+    }
+
+    /*
+     * Application send processing in place: the payload area of this (pooled) packet,
+     * for up to length bytes. Fill it, then call encapsulateFilled() to make it a DATA
+     * packet of whatever was written.
+     */
+    public ByteBuffer payloadBuffer(int length) throws IOException {
+        if (length + HEADER_SIZE > byteBuffer.capacity())
+            throw new IOException(String.format("Too long payload: %d bytes", length));
+        byteBuffer.clear();
+        byteBuffer.position(HEADER_SIZE);
+        byteBuffer.limit(HEADER_SIZE + length);
+        return byteBuffer;
+    }
+
+    public void encapsulateFilled(InetSocketAddress socketAddress) {
+        setType(TYPE_DATA);
+        setVersion(GUDP_VERSION);
+        setPayloadLength(byteBuffer.position() - HEADER_SIZE);
+        setSocketAddress(socketAddress);
+    }
+
     /* 
      * Application receive processing: Extract application payload into a DatagramPacket, 
      * with data and socket address.
      */
     public void decapsulate(DatagramPacket packet) throws IOException {
         int plength  = getPayloadLength();
+        if (plength > packet.getData().length)
+            throw new IOException(String.format("Receive buffer too short for %d bytes", plength));
         getPayload(packet.getData(), plength);
         packet.setLength(plength);
         packet.setSocketAddress(getSocketAddress());
     }
 
+    /*
+     * Bundle format: a DATA-like packet whose payload is a sequence of frames, each an
+     * unsigned short length followed by one application message.
+     */
+    public void startBundle(InetSocketAddress socketAddress) {
+        // A recycled packet keeps the limit its last datagramBuffer() left
+        byteBuffer.clear();
+        setType(TYPE_BUNDLE);
+        setVersion(GUDP_VERSION);
+        setPayloadLength(0);
+        setSocketAddress(socketAddress);
+    }
+
+    /* Add a message, as long as the payload stays within limit; false if it does not fit */
+    public boolean appendFrame(byte[] data, int offset, int length, int limit) {
+        int end = getPayloadLength() + FRAME_HEADER_SIZE + length;
+        if (end > limit || HEADER_SIZE + end > byteBuffer.capacity())
+            return false;
+        int position = HEADER_SIZE + getPayloadLength();
+        byteBuffer.putShort(position, (short) length);
+        byteBuffer.put(position + FRAME_HEADER_SIZE, data, offset, length);
+        setPayloadLength(end);
+        return true;
+    }
+
+    /* Extract the message of the frame at offset; returns the offset of the next frame */
+    public int decapsulateFrame(int offset, DatagramPacket packet) throws IOException {
+        if (offset + FRAME_HEADER_SIZE > getPayloadLength())
+            throw new IOException("Truncated bundle");
+        int length = byteBuffer.getShort(HEADER_SIZE + offset) & 0xffff;
+        if (offset + FRAME_HEADER_SIZE + length > getPayloadLength())
+            throw new IOException("Truncated bundle");
+        if (length > packet.getData().length)
+            throw new IOException(String.format("Receive buffer too short for %d bytes", length));
+        byteBuffer.get(HEADER_SIZE + offset + FRAME_HEADER_SIZE, packet.getData(), 0, length);
+        packet.setLength(length);
+        packet.setSocketAddress(getSocketAddress());
+        return offset + FRAME_HEADER_SIZE + length;
+    }
+
     /*
      * Input processing: Turn a DatagramPacket received from UDP into a GUDP packet
      */
@@ -65,13 +189,70 @@ public class GUDPPacket {
     }
 
     /*
-     * Output processing: Turn headers and payload into a DatagramPacket, for sending with UDP
+     * Input processing in place: the datagram was received into receiveBuffer(),
+     * take over its length and source address.
+     */
+    public void load(DatagramPacket packet) throws IOException {
+        int plength = packet.getLength();
+        if (plength < HEADER_SIZE)
+            throw new IOException(String.format("Too short GUDP packet: %d bytes", plength));
+        setPayloadLength(plength - HEADER_SIZE);
+        // Keep the address object while the peer stays the same
+        if (sockaddr == null || sockaddr.getPort() != packet.getPort()
+                || !sockaddr.getAddress().equals(packet.getAddress()))
+            sockaddr = (InetSocketAddress) packet.getSocketAddress();
+    }
+
+    /*
+     * Channel input: the whole buffer, cleared, to receive a datagram into. Then call
+     * load() with the number of bytes received and the source address.
+     */
+    public ByteBuffer receiveByteBuffer() {
+        byteBuffer.clear();
+        return byteBuffer;
+    }
+
+    public void load(int length, InetSocketAddress source) throws IOException {
+        if (length < HEADER_SIZE)
+            throw new IOException(String.format("Too short GUDP packet: %d bytes", length));
+        setPayloadLength(length - HEADER_SIZE);
+        sockaddr = source;
+    }
+
+    /*
+     * Channel output: headers and payload as a buffer ready to be written.
+     */
+    public ByteBuffer datagramBuffer() {
+        byteBuffer.clear();
+        byteBuffer.limit(HEADER_SIZE + getPayloadLength());
+        return byteBuffer;
+    }
+
+    /*
+     * A DatagramPacket over this packet's whole buffer, to receive into.
+     */
+    public DatagramPacket receiveBuffer() {
+        if (datagram == null)
+            datagram = new DatagramPacket(getBytes(), byteBuffer.capacity());
+        else
+            datagram.setData(getBytes(), 0, byteBuffer.capacity());
+        return datagram;
+    }
+
+    /*
+     * Output processing: Turn headers and payload into a DatagramPacket, for sending with UDP.
+     * The DatagramPacket is reused between calls.
      */
 
     public DatagramPacket pack() throws IOException {
         int totlength = HEADER_SIZE + getPayloadLength();
-        InetSocketAddress socketAddress = getSocketAddress();
-        return new DatagramPacket(getBytes(), totlength, sockaddr);
+        if (datagram == null)
+            datagram = new DatagramPacket(getBytes(), totlength, sockaddr);
+        else {
+            datagram.setData(getBytes(), 0, totlength);
+            datagram.setSocketAddress(sockaddr);
+        }
+        return datagram;
     }
     
     /*
@@ -117,9 +298,14 @@ public class GUDPPacket {
     }
 
     public void setPayload(byte[] pload) {
+        setPayload(pload, 0, pload.length);
+    }
+
+    public void setPayload(byte[] pload, int offset, int length) {
+        byteBuffer.clear();
         byteBuffer.position(HEADER_SIZE);
-        byteBuffer.put(pload, 0, pload.length);
-        payloadLength = pload.length;
+        byteBuffer.put(pload, offset, length);
+        payloadLength = length;
     }
 
     public void setSocketAddress(InetSocketAddress socketAddress) {
@@ -135,7 +321,120 @@ public class GUDPPacket {
     }
 
     public void getPayload(byte[] dst, int length) {
+        byteBuffer.limit(byteBuffer.capacity());
         byteBuffer.position(HEADER_SIZE);
         byteBuffer.get(dst, 0, length);
     }
+
+    /*
+     * ACK format: the header seqno is the cumulative ACK (next expected seqno), the
+     * optional payload carries selective-ACK blocks of data received above it, each
+     * block a pair of ints [start, end). A plain ACK without payload is still valid.
+     */
+    public void setSackBlocks(int[] blocks, int count) {
+        setSackBlocks(blocks, count, 0);
+    }
+
+    /*
+     * An ACK answering a BSN also carries the receiver's maximum segment size, as an
+     * int after the SACK blocks. Peers that do not know the option just see the blocks.
+     */
+    public void setSackBlocks(int[] blocks, int count, int mss) {
+        byteBuffer.clear();
+        byteBuffer.position(HEADER_SIZE);
+        for (int i = 0; i < 2 * count; i++)
+            byteBuffer.putInt(blocks[i]);
+        payloadLength = count * SACK_BLOCK_SIZE;
+        if (mss > 0) {
+            byteBuffer.putInt(mss);
+            payloadLength += MSS_OPTION_SIZE;
+        }
+    }
+
+    public int getSackBlockCount() {
+        return getPayloadLength() / SACK_BLOCK_SIZE;
+    }
+
+    /* Maximum segment size in an ACK, 0 if there is none */
+    public int getAckMSS() {
+        if (getPayloadLength() % SACK_BLOCK_SIZE != MSS_OPTION_SIZE)
+            return 0;
+        return byteBuffer.getInt(HEADER_SIZE + getPayloadLength() - MSS_OPTION_SIZE);
+    }
+
+    /*
+     * BSN format: the payload starts with the sender's offered maximum segment size,
+     * then an int of flags (BSN_FLAG_FEC: parity packets follow the data). For path
+     * MTU probing, the BSN is padded to that size, so that an ACK proves the path
+     * carries it. A BSN without payload offers nothing.
+     */
+    public void setBSNOffer(int mss, int flags, int paddedLength) {
+        byteBuffer.putInt(HEADER_SIZE, mss);
+        byteBuffer.putInt(HEADER_SIZE + MSS_OPTION_SIZE, flags);
+        payloadLength = Math.max(BSN_OPTION_SIZE, paddedLength);
+    }
+
+    public int getBSNOffer() {
+        if (getPayloadLength() < MSS_OPTION_SIZE)
+            return 0;
+        return byteBuffer.getInt(HEADER_SIZE);
+    }
+
+    public int getBSNFlags() {
+        if (getPayloadLength() < BSN_OPTION_SIZE)
+            return 0;
+        return byteBuffer.getInt(HEADER_SIZE + MSS_OPTION_SIZE);
+    }
+
+    /*
+     * Parity format: the header seqno is the first data packet of the block. The
+     * payload holds the number of packets in the block, the XOR of their payload
+     * lengths and of their types, then the XOR of their payloads, each padded with
+     * zeros to the longest. Parity packets are not ACKed nor retransmitted.
+     */
+    public void setParity(int seqno, int count, int xorLength, int xorType, byte[] xor, int length) {
+        setType(TYPE_PARITY);
+        setVersion(GUDP_VERSION);
+        setSeqno(seqno);
+        byteBuffer.clear();
+        byteBuffer.position(HEADER_SIZE);
+        byteBuffer.putInt(count);
+        byteBuffer.putInt(xorLength);
+        byteBuffer.putInt(xorType);
+        byteBuffer.put(xor, 0, length);
+        payloadLength = PARITY_HEADER_SIZE + length;
+    }
+
+    public int getParityCount() {
+        return getPayloadLength() < PARITY_HEADER_SIZE ? 0 : byteBuffer.getInt(HEADER_SIZE);
+    }
+
+    public int getParityLength() {
+        return byteBuffer.getInt(HEADER_SIZE + 4);
+    }
+
+    public int getParityType() {
+        return byteBuffer.getInt(HEADER_SIZE + 8);
+    }
+
+    /* Copy the XOR of the payloads into dst; returns its length */
+    public int getParityData(byte[] dst) {
+        int length = getPayloadLength() - PARITY_HEADER_SIZE;
+        byteBuffer.get(HEADER_SIZE + PARITY_HEADER_SIZE, dst, 0, length);
+        return length;
+    }
+
+    /* XOR this packet's payload into acc */
+    public void xorPayloadInto(byte[] acc) {
+        for (int i = 0; i < payloadLength; i++)
+            acc[i] ^= byteBuffer.get(HEADER_SIZE + i);
+    }
+
+    public int getSackStart(int block) {
+        return byteBuffer.getInt(HEADER_SIZE + block * SACK_BLOCK_SIZE);
+    }
+
+    public int getSackEnd(int block) {
+        return byteBuffer.getInt(HEADER_SIZE + block * SACK_BLOCK_SIZE + 4);
+    }
 }
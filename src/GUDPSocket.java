@@ -2,14 +2,19 @@ import java.io.IOException;
 
 import java.net.*;
 
+import jdk.net.ExtendedSocketOptions;
+
 import java.util.*;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 import java.time.Duration;
 import java.time.Instant;
@@ -25,63 +30,573 @@ public class GUDPSocket implements GUDPSocketAPI {
     Thread sender ;
 
     boolean isNewFile;
+    boolean isSending;
+    boolean isReceiving;
+    volatile boolean isClosing;
+
+    // The session sent by this socket completes once everything is ACKed after close(),
+    // or fails; the receive side completes once close() stopped it
+    final CompletableFuture<Void> sendCompletion = new CompletableFuture<>();
+    final CompletableFuture<Void> receiveCompletion = new CompletableFuture<>();
+
+    // Message bundling, off while Bundle_delay is 0; the open bundle is guarded by this
+    long Bundle_delay = 0;
+    int Bundle_size = GUDPPacket.MAX_SEGMENT_LEN;
+    GUDPPacket Bundle;
+    int Bundle_limit;   // of the open bundle, whose budget was taken for that size
+    volatile long Bundle_deadline = Long.MAX_VALUE;
+    // receive() side: bundle being unpacked, and the offset of its next frame
+    GUDPPacket Unbundling;
+    int Frame_offset;
 
-    public List<Integer> ACK_Buffer = new ArrayList<>();
+    // Largest GUDP payload this socket sends and receives, offered in the BSN
+    int Max_segment = GUDPPacket.ETHERNET_SEGMENT_LEN;
+    boolean isProbing = false;
+
+    public AckQueue ACK_Buffer = new AckQueue(AckQueue.DEFAULT_CAPACITY);
+    final GUDPMetrics metrics = new GUDPMetrics(this::getWindowSize);
 
     public GUDPSocket(DatagramSocket socket) throws IOException {
         //initial
         this.receive=new ReceiveThread(ACK_Buffer);
-        this.receiver=new Thread(receive,"Receiver");
         this.send=new SendThread();
-        this.sender=new Thread(send,"Sender");
         this.isNewFile=true;
+        this.isSending=false;
+        this.isReceiving=false;
         this.datagramSocket = socket;
     }
 
+    /*
+     * Streaming send: the sender thread starts with the first packet and transmits
+     * while the application keeps calling send(). When the send buffer budget is
+     * used up, send() blocks until ACKs release room.
+     * Without setDestinations(), the address of the first packet is the destination.
+     */
     public void send(DatagramPacket packet) throws IOException {
-        GUDPPacket gudppacket = null;
-        if (packet != null) {
-            gudppacket = GUDPPacket.encapsulate(packet);
+        if (Bundle_delay > 0 && GUDPPacket.FRAME_HEADER_SIZE + packet.getLength() <= bundleLimit()) {
+            bundle(packet);
+            return;
         }
+        flush();
+        acquireBudget(packet.getLength());
+
+        // Encapsulate once into a pooled buffer, shared by all destinations until ACKed
+        GUDPPacket gudppacket = send.PacketPool.take();
+        gudppacket.encapsulateFrom(packet);
+        enqueue(gudppacket, (InetSocketAddress) packet.getSocketAddress());
+    }
+
+    /*
+     * Zero-copy send from a file: the payload is the prefix (e.g. an application
+     * header) followed by up to length bytes read at position of the channel, read
+     * straight into a pooled packet buffer. Returns the number of file bytes sent,
+     * or -1 at end of file, when nothing is sent.
+     */
+    public int send(ByteBuffer prefix, FileChannel channel, long position, int length,
+                    InetSocketAddress address) throws IOException {
+        flush();
+        int Budget_bytes = acquireBudget(prefix.remaining() + length);
+
+        GUDPPacket gudppacket = send.PacketPool.take();
+        ByteBuffer payload = gudppacket.payloadBuffer(prefix.remaining() + length);
+        payload.put(prefix);
+        int byteRead = 0;
+        while (payload.hasRemaining()) {
+            int n = channel.read(payload, position + byteRead);
+            if (n < 0)
+                break;
+            byteRead += n;
+        }
+        if (byteRead == 0 && length > 0) {
+            send.PacketPool.give(gudppacket);
+            send.SendBuffer_Bytes.release(Budget_bytes);
+            send.SendBuffer_Packets.release();
+            return -1;
+        }
+        gudppacket.encapsulateFilled(address);
+        // Short read at the end of the file: keep only the budget of what was read
+        send.SendBuffer_Bytes.release(Budget_bytes - send.budgetOf(gudppacket.getPayloadLength()));
+        enqueue(gudppacket, address);
+        return byteRead;
+    }
+
+    /* Take the send buffer budget of a payload of length bytes, blocking until ACKs free it */
+    private int acquireBudget(int length) throws IOException {
+        int Budget_bytes = send.budgetOf(length);
+        send.checkFailure();
+        try {
+            send.SendBuffer_Packets.acquire();
+            send.SendBuffer_Bytes.acquire(Budget_bytes);
+        } catch (InterruptedException e) { throw new IOException(e); }
+        // Woken by a failure: pass the budget on to the next waiter
+        if (send.Failure != null) {
+            send.SendBuffer_Bytes.release(Budget_bytes);
+            send.SendBuffer_Packets.release();
+            throw send.Failure;
+        }
+        return Budget_bytes;
+    }
+
+    /*
+     * Message bundling (Nagle-like): small messages are packed into one datagram as
+     * length-prefixed frames, which goes out when the next message does not fit, or
+     * the flush delay after its first message, or at flush() and finish(). receive()
+     * unpacks the frames, so message boundaries are kept. A zero delay turns it off.
+     * Peers must know the bundle packet type.
+     */
+    public void setBundling(Duration delay, int maxBytes) {
+        Bundle_delay = delay == null ? 0 : delay.toNanos();
+        Bundle_size = maxBytes;
+    }
+
+    /* Send the open bundle now */
+    public void flush() throws IOException {
+        synchronized (this) {
+            GUDPPacket bundle = takeBundle();
+            if (bundle != null)
+                closeBundle(bundle);
+        }
+    }
 
-        SocketAddress socketAddress=packet.getSocketAddress();
-        send.address = (InetSocketAddress) socketAddress;
+    /* Bundles fit the segment size of every destination, see SendThread.peerSegment() */
+    private int bundleLimit() {
+        return Math.min(Bundle_size, send.peerSegment() - send.parityOverhead());
+    }
+
+    /*
+     * Safe with concurrent senders: the open bundle is appended to, closed and replaced
+     * under the lock. A new bundle, which may block for budget, is prepared before
+     * taking the lock, and handed back if another sender opened one meanwhile.
+     */
+    private void bundle(DatagramPacket packet) throws IOException {
+        InetSocketAddress address = (InetSocketAddress) packet.getSocketAddress();
+        synchronized (this) {
+            if (Bundle != null
+                    && Bundle.appendFrame(packet.getData(), packet.getOffset(), packet.getLength(), Bundle_limit))
+                return;
+        }
+
+        // Open a new bundle with this message in it, holding the budget of a full one
+        int Limit = bundleLimit();
+        int Budget_bytes = acquireBudget(Limit);
+        GUDPPacket bundle = send.PacketPool.take();
+        bundle.startBundle(address);
+        bundle.appendFrame(packet.getData(), packet.getOffset(), packet.getLength(), Limit);
+        synchronized (this) {
+            if (Bundle != null
+                    && Bundle.appendFrame(packet.getData(), packet.getOffset(), packet.getLength(), Bundle_limit)) {
+                send.PacketPool.give(bundle);
+                send.SendBuffer_Bytes.release(Budget_bytes);
+                send.SendBuffer_Packets.release();
+                return;
+            }
+            // Queued under the lock, so the full bundle goes before the new one
+            GUDPPacket full = takeBundle();
+            if (full != null)
+                closeBundle(full);
+            Bundle = bundle;
+            Bundle_limit = Limit;
+            Bundle_deadline = System.nanoTime() + Bundle_delay;
+            if (isSending == false) {
+                if (send.Destinations.isEmpty())
+                    send.addDestination(address);
+                startSending();
+            }
+        }
+        // The sender flushes the bundle once the delay is over
+        wakeSender();
+    }
+
+    /* Called with the lock held, like closeBundle() */
+    private GUDPPacket takeBundle() {
+        GUDPPacket bundle = Bundle;
+        Bundle = null;
+        Bundle_deadline = Long.MAX_VALUE;
+        return bundle;
+    }
+
+    private void closeBundle(GUDPPacket bundle) throws IOException {
+        // Keep only the budget of what was packed
+        send.SendBuffer_Bytes.release(send.budgetOf(Bundle_limit) - send.budgetOf(bundle.getPayloadLength()));
+        enqueue(bundle, bundle.getSocketAddress());
+    }
+
+    /* Sequence numbers follow the order of the pending queue, also when the sender flushes a bundle */
+    private synchronized void enqueue(GUDPPacket gudppacket, InetSocketAddress address) throws IOException {
+        send.checkFailure();
         gudppacket.setSeqno(send.SeqNum++);
-        send.SendingQueue.add(new PacketBuf(gudppacket));
+        send.PendingQueue.add(gudppacket);
+        if (isSending == false) {
+            if (send.Destinations.isEmpty())
+                send.addDestination(address);
+            startSending();
+        }
+        wakeSender();
+    }
+
+    /* Once, whichever of the application threads gets here first */
+    private synchronized void startSending() throws IOException {
+        if (isSending == true)
+            return;
+        send.open();
+        isSending = true;
+        startSender();
     }
 
     public void receive(DatagramPacket packet) throws IOException {
         if ( isNewFile == true ) {
-            System.out.println("[Receiver] Start receiving.");
-            receiver.start();
+            GUDPLog.info("[Receiver] Start receiving.");
+            if (isReceiving == false) {
+                isReceiving = true;
+                startReceiver();
+            }
             isNewFile = false;
         }
 
         //receive packets
         try {
-            GUDPPacket gudpPacket = receive.ReceiveQueue.take();
-            if ( gudpPacket!=null ) {
+            GUDPPacket gudpPacket = Unbundling != null ? Unbundling : receive.ReceiveQueue.take();
+            if (gudpPacket.getType() == GUDPPacket.TYPE_BUNDLE) {
+                // One message per call, until the bundle is used up
+                if (Unbundling == null) {
+                    Unbundling = gudpPacket;
+                    Frame_offset = 0;
+                }
+                Frame_offset = gudpPacket.decapsulateFrame(Frame_offset, packet);
+                if (Frame_offset >= gudpPacket.getPayloadLength()) {
+                    Unbundling = null;
+                    receive.Pool.give(gudpPacket);
+                    receiveQueueDrained();
+                }
+            }
+            else if ( gudpPacket!=null ) {
                 gudpPacket.decapsulate(packet);
+                receive.Pool.give(gudpPacket);
+                receiveQueueDrained();
             }
 
+            metrics.Delivered_bytes.add(packet.getLength());
             // Detect end of file by check FTP files
-            receive.FtpPacket = new VSFtp(packet);
-            if ( receive.FtpPacket.getType() == VSFtp.TYPE_END ) {
-                System.out.println("[Receiver] Transmission completed.");
-                receive.stop();
+            if ( VSFtp.typeOf(packet) == VSFtp.TYPE_END ) {
+                GUDPLog.info("[Receiver] Transmission completed: " + packet.getSocketAddress());
+                receive.finishSession((InetSocketAddress) packet.getSocketAddress());
             }
         } catch (InterruptedException e) { throw new IOException(e); }
         catch (Exception e){ throw new RuntimeException(e); }
     }
 
+    /*
+     * End of one transfer, e.g. a file. The session stays open for the next one, in the
+     * same sequence space and with the window and RTT learned so far; close() ends it.
+     */
     public void finish() throws IOException {
-        sender.start();
+        finishAsync();
+    }
+
+    /*
+     * finish(), returning the completion of the transfer it ends: once every live
+     * destination ACKed everything sent so far, or failed with the session.
+     */
+    public CompletableFuture<Void> finishAsync() throws IOException {
+        flush();
+        SendThread.Boundary boundary;
+        synchronized (this) {
+            if (send.isFinished)
+                throw new IOException("Session closed");
+            // Under the enqueue lock: everything sent so far is below SeqNum
+            boundary = send.new Boundary(send.SeqNum - send.BSNNum);
+            send.Boundaries.add(boundary);
+            send.Finish_index = boundary.End_index;
+            if (isSending == false)
+                startSending();
+        }
+        wakeSender();
         isNewFile = true;
-        System.out.println("[Sender] Start sending.");
+        return boundary.completion;
+    }
+
+    /*
+     * Engine hooks. This class runs the sender, the ACK receiver and the receiver on
+     * virtual threads of their own over a blocking DatagramSocket; GUDPChannelSocket
+     * overrides the hooks to drive the same protocol state from a shared NIO event loop.
+     */
+    void startSender() throws IOException {
+        sender = Thread.ofVirtual().name("Sender").start(send);
+        GUDPLog.info("[Sender] Start sending.");
+    }
+
+    void startReceiver() throws IOException {
+        receiver = Thread.ofVirtual().name("Receiver").start(receive);
+    }
+
+    /* New data, an end of data or new ACKs for the sender */
+    void wakeSender() {
+        LockSupport.unpark(sender);
+    }
+
+    void transmit(GUDPPacket packet) throws IOException {
+        datagramSocket.send(packet.pack());
+    }
+
+    /* Hand an in-order packet to receive(); false if it has to stay in the reorder buffer */
+    boolean deliver(GUDPPacket packet) throws InterruptedException {
+        receive.ReceiveQueue.put(packet);
+        return true;
+    }
+
+    /* receive() took a packet off the receive queue */
+    void receiveQueueDrained() throws IOException {
+    }
+
+    GUDPPacket newPacket() {
+        return GUDPPacket.allocate(Max_segment);
+    }
+
+    /* Keep routers from fragmenting our datagrams, so that MTU probes can fail */
+    void setDontFragment() throws IOException {
+        datagramSocket.setOption(ExtendedSocketOptions.IP_DONTFRAGMENT, true);
+    }
+
+    /* The sender completed, or gave up with failure */
+    void senderStopped(IOException failure) {
+        if (failure == null)
+            sendCompletion.complete(null);
+        else
+            sendCompletion.completeExceptionally(failure);
+        if (isClosing)
+            closeSocket();
+    }
+
+    void receiverStopped(IOException failure) {
+        if (failure == null)
+            receiveCompletion.complete(null);
+        else
+            receiveCompletion.completeExceptionally(failure);
+    }
+
+    /* Unblocks the threads waiting in datagramSocket.receive(), which then stop */
+    void closeSocket() {
+        datagramSocket.close();
     }
 
+    /*
+     * Bound the data queued in the sender (unsent plus unacknowledged), in packets
+     * and in bytes. Must be called before the first send().
+     */
+    public void setSendBufferSize(int packets, int bytes) {
+        if (isSending == true)
+            throw new IllegalStateException("Sender already started");
+        send.BufferPackets = packets;
+        send.BufferBytes = bytes;
+        send.SendBuffer_Packets = new Semaphore(packets);
+        send.SendBuffer_Bytes = new Semaphore(bytes);
+        send.PendingQueue = new ArrayBlockingQueue<>(packets);
+        send.PacketPool = new BufferPool<>(packets, this::newPacket);
+        // Room for the whole budget plus the BSN, which is already queued
+        SequenceRing<GUDPPacket> ring = new SequenceRing<>(packets + 1);
+        ring.add(send.Outgoing.get(0));
+        send.Outgoing = ring;
+    }
+
+    /*
+     * End of the session. Queued data is still sent: the socket is closed once the
+     * sender is done with it.
+     */
     public void close() throws IOException {
         isNewFile = true;
+        isClosing = true;
+        if (isSending) {
+            flush();
+            send.isFinished = true;
+            wakeSender();
+        }
+        if (!isSending || sendCompletion.isDone())
+            closeSocket();
+    }
+
+    /*
+     * Completion of what this socket sends: completes once every destination ACKed
+     * everything sent before close(), or fails with the reason the session was given
+     * up. Each transfer in the session has its own, from finishAsync().
+     */
+    public CompletableFuture<Void> getSendCompletion() {
+        return sendCompletion;
+    }
+
+    /* Completion of the receive side, once close() stopped it */
+    public CompletableFuture<Void> getReceiveCompletion() {
+        return receiveCompletion;
+    }
+
+    public void awaitSendComplete() throws IOException, InterruptedException {
+        try {
+            sendCompletion.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    /*
+     * Largest payload this socket offers to send and accepts, negotiated down with each
+     * peer in the BSN exchange; up to GUDPPacket.MAX_SEGMENT_LEN for jumbo frames.
+     * Must be called before sending or receiving starts.
+     */
+    public void setMaxSegmentSize(int bytes) {
+        if (isSending == true || isReceiving == true)
+            throw new IllegalStateException("Socket already started");
+        if (bytes < GUDPPacket.MAX_DATA_LEN || bytes > GUDPPacket.MAX_SEGMENT_LEN)
+            throw new IllegalArgumentException("Segment size out of range: " + bytes);
+        Max_segment = bytes;
+    }
+
+    /*
+     * Path MTU probing: the BSN is padded to the segment size it offers, and sent with
+     * the don't-fragment bit where the platform allows. Each time it goes unanswered,
+     * the next smaller size is tried, down to GUDPPacket.MAX_DATA_LEN.
+     */
+    public void setPathMTUProbing(boolean probing) throws IOException {
+        if (isSending == true)
+            throw new IllegalStateException("Sender already started");
+        isProbing = probing;
+        if (probing) {
+            try {
+                setDontFragment();
+            } catch (UnsupportedOperationException e) {
+                GUDPLog.warn("[Sender] Don't-fragment not supported, probing without it.");
+            }
+        }
+    }
+
+    /*
+     * Largest payload that every destination accepts, for the application to size its
+     * messages by. Starts the sender if need be, and waits until the BSN exchange with
+     * all destinations is over. Returns 0 if a destination does not negotiate (it
+     * accepts GUDPPacket.MAX_DATA_LEN, but its application may expect less). With FEC,
+     * room is left for the parity header.
+     */
+    public int getMaxPayloadSize() throws IOException {
+        if (isSending == false) {
+            if (send.Destinations.isEmpty())
+                throw new IllegalStateException("No destination");
+            startSending();
+            wakeSender();
+        }
+        try {
+            send.Negotiated.await();
+        } catch (InterruptedException e) { throw new IOException(e); }
+        send.checkFailure();
+        int mss = send.negotiatedMSS();
+        return mss > 0 ? mss - send.parityOverhead() : 0;
+    }
+
+    /*
+     * Send pacing spreads each destination's window over its RTT, instead of sending
+     * whatever the window allows back to back. On by default.
+     */
+    public void setPacing(boolean pacing) {
+        if (isSending == true)
+            throw new IllegalStateException("Sender already started");
+        send.isPacing = pacing;
+    }
+
+    /*
+     * Forward error correction: after each block of blockSize data packets, the sender
+     * adds an XOR parity packet, from which the receiver rebuilds one lost packet of
+     * the block without waiting for a retransmission. 0 turns it off. When adaptive,
+     * each destination sizes its next block after the loss rate it sees, starting from
+     * blockSize. Peers must know the parity packet type. Must be called before sending starts.
+     */
+    public void setForwardErrorCorrection(int blockSize, boolean adaptive) {
+        if (isSending == true)
+            throw new IllegalStateException("Sender already started");
+        if (blockSize < 0 || blockSize == 1 || blockSize > GUDPPacket.MAX_FEC_BLOCK)
+            throw new IllegalArgumentException("FEC block size out of range: " + blockSize);
+        send.Fec_block = blockSize;
+        send.isAdaptiveFEC = adaptive;
+    }
+
+    /*
+     * Cap on the send rate of the socket, over all destinations and including
+     * retransmissions, in bytes per second of GUDP datagrams; 0 for no cap.
+     */
+    public void setMaxSendRate(long bytesPerSecond) {
+        if (isSending == true)
+            throw new IllegalStateException("Sender already started");
+        send.Rate_cap.setRate(bytesPerSecond, bytesPerSecond > 0 ? send.burstOf(bytesPerSecond) : 0);
+    }
+
+    /*
+     * Fan-out: every packet passed to send() goes to all of these destinations,
+     * whatever its own address. The payload is encapsulated once; each destination
+     * has its own window, RTT estimate and retransmissions. Must be called before
+     * sending starts.
+     */
+    public void setDestinations(List<InetSocketAddress> destinations) {
+        if (isSending == true)
+            throw new IllegalStateException("Sender already started");
+        send.Destinations.clear();
+        send.Peer_index.clear();
+        for (InetSocketAddress destination: destinations)
+            send.addDestination(destination);
+    }
+
+    /*
+     * Straggler policy for fan-out: a destination that keeps the others waiting, with
+     * no progress for this long, is dropped from the transfer. By default (null) the
+     * transfer waits for the slowest destination. A destination whose retransmission
+     * limit is reached is always dropped, and the transfer fails only if none is left.
+     */
+    public void setStragglerTimeout(Duration timeout) {
+        send.Straggler_timeout = timeout == null ? 0 : timeout.toNanos();
+    }
+
+    /*
+     * Current retransmission timeout of the sender, as derived from the measured RTT.
+     * With several destinations, these report on the first one.
+     */
+    public Duration getRTO() {
+        SendThread.Destination primary = send.primary();
+        return primary == null ? RttEstimator.INITIAL_RTO : primary.rtt.getRTO();
+    }
+
+    public Duration getSRTT() {
+        SendThread.Destination primary = send.primary();
+        return primary == null ? Duration.ZERO : primary.rtt.getSRTT();
+    }
+
+    /*
+     * Replace the congestion control engine of the sender. Must be called before sending starts.
+     * An instance serves a single destination; with fan-out, pass a factory instead.
+     */
+    public void setCongestionControl(CongestionControl cc) {
+        setCongestionControl(new Supplier<CongestionControl>() {
+            private boolean isUsed = false;
+            public CongestionControl get() {
+                if (isUsed)
+                    throw new IllegalStateException("One congestion control instance per destination");
+                isUsed = true;
+                return cc;
+            }
+        });
+    }
+
+    public void setCongestionControl(Supplier<CongestionControl> factory) {
+        if (isSending == true)
+            throw new IllegalStateException("Sender already started");
+        send.ccFactory = factory;
+    }
+
+    public int getWindowSize() {
+        SendThread.Destination primary = send.primary();
+        return primary == null ? GUDPPacket.INITIAL_WINDOW_SIZE : primary.WindowSize_Current;
+    }
+
+    /*
+     * Counters, RTT and RTO histograms and gauges of this socket, for a snapshot()
+     * or to register() with JMX. Logging is set apart, with GUDPLog.setLevel().
+     */
+    public GUDPMetrics getMetrics() {
+        return metrics;
     }
 
     public void SetPacket(GUDPPacket packet, short type, short version, int Seqno, int payloadlen) throws IOException {
@@ -92,253 +607,1158 @@ public class GUDPSocket implements GUDPSocketAPI {
     }
 
     class SendThread implements Runnable {
-        final List<PacketBuf> SendingQueue = new ArrayList<>(); // Priority Queue: Packets sorting
-        final List<Integer> ACKBuffer = new ArrayList<>();
-        InetSocketAddress address;
+        final AckQueue ACKBuffer = new AckQueue(AckQueue.DEFAULT_CAPACITY);
+        final int[] ACK_record = new int[AckQueue.recordSize()];
+        // Retransmission timers of all destinations
+        final DelayQueue<PacketBuf> Timers = new DelayQueue<>();
+
+        // Send buffer budget, taken by send() and given back once every destination ACKed the packet
+        int BufferPackets = GUDPPacket.MAX_WINDOW_SIZE * 2;
+        int BufferBytes = BufferPackets * GUDPPacket.MAX_DATAGRAM_LEN;
+        Semaphore SendBuffer_Packets = new Semaphore(BufferPackets);
+        Semaphore SendBuffer_Bytes = new Semaphore(BufferBytes);
+        // Handoff from send(); never fills up, send() holds a budget permit per entry
+        BlockingQueue<GUDPPacket> PendingQueue = new ArrayBlockingQueue<>(BufferPackets);
+        BufferPool<GUDPPacket> PacketPool = new BufferPool<>(BufferPackets, GUDPSocket.this::newPacket);
+        // Encapsulated packets by index from BSN, shared by the destinations; a packet
+        // leaves once the slowest live destination has it ACKed
+        SequenceRing<GUDPPacket> Outgoing = new SequenceRing<>(BufferPackets + 1);
+
+        // Destinations, in the order of their index in ACK records
+        final List<Destination> Destinations = new ArrayList<>();
+        final Map<InetSocketAddress, Integer> Peer_index = new ConcurrentHashMap<>();
+        Supplier<CongestionControl> ccFactory = AimdCongestionControl::new;
+        long Straggler_timeout = 0;   // nanos, 0 to wait for the slowest destination
 
-        final int WindowSize = GUDPPacket.MAX_WINDOW_SIZE;
         final int MAXIMUN_RESEND = 10;
-        int WindowSize_Current;
-        int SendBase;
-        int SendEnd;
+        final int DUPACK_THRESHOLD = 3;
+
+        // Pacing: a burst is what the pacer lets out in PACING_QUANTUM, at least two packets
+        final long PACING_QUANTUM = TimeUnit.MILLISECONDS.toNanos(1);
+        boolean isPacing = true;
+        // Socket wide rate cap over all destinations, rate 0 for none
+        final TokenBucket Rate_cap = new TokenBucket(0, 0);
+
+        // FEC: data packets per parity packet, 0 for none; adaptive blocks follow the loss rate
+        int Fec_block = 0;
+        boolean isAdaptiveFEC = false;
+        final int FEC_MIN_BLOCK = 4;
+        final double LOSS_GAIN = 1.0 / 128;
+        GUDPPacket Parity_packet;
 
         int BSNNum;
         int SeqNum;
         boolean isComplete;
-        int Packet_cnt;
-        int ACK_index;
+        // No more data follows, set by close()
+        volatile boolean isFinished;
+        // Transfers of the session not ACKed yet, in order, and where the last one ends
+        final Queue<Boundary> Boundaries = new ConcurrentLinkedQueue<>();
+        volatile int Finish_index;
+        // Open once every live destination answered the BSN
+        final CountDownLatch Negotiated = new CountDownLatch(1);
+        // Why the session stopped, if it failed
+        volatile IOException Failure;
 
         public SendThread() throws IOException {
-            System.out.println("[Sender] Send thread started.");
+            GUDPLog.info("[Sender] Send thread started.");
 
-            WindowSize_Current = WindowSize;
-            SendBase = 0;
-            SendEnd = SendBase + WindowSize_Current;
             BSNNum = new Random().nextInt(Short.MAX_VALUE);
             SeqNum = BSNNum;
             isComplete = false;
-            Packet_cnt = 0;
-            ACK_index = 0;
+            isFinished = false;
 
-            ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
-            buffer.order(ByteOrder.BIG_ENDIAN);
-
-            GUDPPacket packet = new GUDPPacket(buffer);
+            // Room for MTU probes of any size
+            GUDPPacket packet = GUDPPacket.allocate(GUDPPacket.MAX_SEGMENT_LEN);
             SetPacket(packet, GUDPPacket.TYPE_BSN, GUDPPacket.GUDP_VERSION, SeqNum, 0);
             SeqNum++;
 
-            SendingQueue.add(new PacketBuf(packet));
+            Outgoing.add(packet);
         }
 
-        public void run() {
-            ReceiveThread ACK;
-            ACK = new ReceiveThread(ACKBuffer);
+        /* The end of one transfer in the session: the index past its last packet */
+        class Boundary {
+            final int End_index;
+            final CompletableFuture<Void> completion = new CompletableFuture<>();
 
-            Thread ACK_Receiver = new Thread(ACK, "ACK Receiver");
-            ACK_Receiver.start();
-            System.out.println("[ACK_Receiver] ACK receive thread started.");
+            Boundary(int index) {
+                End_index = index;
+            }
+        }
 
-            // try {
-            //     send(SendingQueue.get(0));// Send BSN
-            //     System.out.println("[Sender] BSN sent:"
-            //             + BSNNum );
-            // } catch (IOException e) { throw new RuntimeException(e); }
+        /*
+         * The sending state of one destination: its window into the shared packets,
+         * with its own ACK, RTT, congestion and retransmission state.
+         */
+        class Destination {
+            final InetSocketAddress address;
+            final int Index;
+            // In-flight packets of this destination, same indexes as Outgoing
+            SequenceRing<PacketBuf> SendingQueue;
+            BufferPool<PacketBuf> PacketBufPool;
 
-            while (!isComplete) {
-                try {
-                    // Slide_Window(ACKBuffer);
-                    // Slide Window
-                    for (int i = ACK_index; i < ACKBuffer.size(); i++) {
-                        PacketBuf Packet_Queue = SendingQueue.get(ACKBuffer.get(i) - BSNNum - 1);
-                        if (Packet_Queue.isACKRcv == false) {
-                            this.Packet_cnt++;
-                            // this.WindowSize_Current = WindowSize;
-                            Packet_Queue.isACKRcv = true;
-                        }
-                        this.ACK_index++;
-                    }
+            final RttEstimator rtt = new RttEstimator();
+            CongestionControl cc;
+            volatile int WindowSize_Current;
+            int SendBase;
+            int SendEnd;
+            int Packet_cnt;
+            int Acked_cnt;
+            PacketBuf RTT_packet;
+            boolean isACKRcv;
+            boolean isDropped;
+            long Progress_time;
+            // Send pacing
+            final TokenBucket Pacer = new TokenBucket(0, 0);
+            long Pacing_deadline = Long.MAX_VALUE;
+            // Maximum segment size: -1 until the BSN is ACKed, 0 if the peer does not negotiate
+            volatile int Peer_MSS = -1;
+            // ACKs covering the BSN that came without the MSS option, and when the first did
+            int Plain_ACK_cnt;
+            long Plain_ACK_time;
+            int Probe_size;
+            // FEC: the open block, the XOR of what was sent of it so far, and the loss rate seen
+            int Block_start = 1;
+            int Block_size;
+            int Block_len;
+            int Block_xor_len;
+            int Block_xor_type;
+            byte[] Block_data;
+            double Loss_rate;
 
-                    int SendIndex;
-                    for (SendIndex = SendBase; SendIndex < SendEnd; SendIndex++) {
-                        if (SendingQueue.get(SendIndex).isACKRcv == true) {
-                            this.SendBase++;
-                            // if (SendBase == 1) {
-                            // System.out.println("[Sender] Packets in air.");
-                            // }
-                        }
-                        else {
-                            break;
-                        }
+            // Fast retransmit state
+            int Last_Cum_index;
+            int Dup_ACK_cnt;
+            int High_SACK_index;
+            int Recovery_index;
+            int Fast_index;
+
+            Destination(InetSocketAddress address, int index) {
+                this.address = address;
+                this.Index = index;
+                WindowSize_Current = GUDPPacket.INITIAL_WINDOW_SIZE;
+                SendBase = 0;
+                SendEnd = SendBase;
+                Packet_cnt = 0;
+                Last_Cum_index = 0;
+                Dup_ACK_cnt = 0;
+                High_SACK_index = -1;
+                Recovery_index = 0;
+                Fast_index = 0;
+            }
+
+            /* Sending starts: size the window state after the send buffer */
+            void open(long now) {
+                SendingQueue = new SequenceRing<>(Outgoing.capacity());
+                PacketBufPool = new BufferPool<>(BufferPackets, () -> new PacketBuf(this));
+                cc = ccFactory.get();
+                WindowSize_Current = cc.getWindow();
+                Progress_time = now;
+                Probe_size = Max_segment;
+                Block_size = Fec_block;
+                if (Fec_block > 0)
+                    Block_data = new byte[Max_segment];
+            }
+
+            /* Take in one ACK record: cumulative ACK first, then the SACK blocks above it */
+            void onACK(int[] record, int Block_cnt) {
+                isACKRcv = true;
+                if (record[2] > 0 && Peer_MSS < 0)
+                    Peer_MSS = Math.min(record[2], Max_segment);
+                int Cum_index = Math.min(record[1] - BSNNum, SendEnd);
+                if (Cum_index > Last_Cum_index) {
+                    Last_Cum_index = Cum_index;
+                    Dup_ACK_cnt = 0;
+                }
+                else if (SendBase < SendEnd) {
+                    Dup_ACK_cnt++;
+                }
+                for (int i = SendBase; i < Cum_index; i++)
+                    markACK(i);
+                for (int b = 0; b < Block_cnt; b++) {
+                    int Start_index = Math.max(record[3 + 2 * b] - BSNNum, SendBase);
+                    int End_index = Math.min(record[4 + 2 * b] - BSNNum, SendEnd);
+                    for (int i = Start_index; i < End_index; i++)
+                        markACK(i);
+                    High_SACK_index = Math.max(High_SACK_index, End_index - 1);
+                }
+                // The BSN got through, but its ACK came without the option, which a
+                // negotiating receiver puts on every ACK until data flows. One more such
+                // ACK (of a retransmitted BSN, or of data), or none within an RTO, and the
+                // peer is one from before negotiation. The BSN is not sent to ask again:
+                // such a peer would start over.
+                if (Packet_cnt > 0 && Peer_MSS < 0 && record[2] <= 0) {
+                    if (Plain_ACK_cnt++ == 0)
+                        Plain_ACK_time = System.nanoTime();
+                    else
+                        Peer_MSS = 0;
+                }
+            }
+
+            /*
+             * Update the RTT and the window from the ACKs taken in, slide and fill the
+             * window, and fast retransmit.
+             */
+            void step(long now) throws IOException {
+                if (Acked_cnt > 0) {
+                    long RTT_sample = -1;
+                    if (RTT_packet != null) {
+                        RTT_sample = now - RTT_packet.sendTime;
+                        rtt.sample(RTT_sample);
+                        metrics.RTT.record(RTT_sample);
+                        metrics.RTO.record(rtt.currentNanos());
                     }
+                    else
+                        rtt.resetBackoff();
+                    cc.onAck(Acked_cnt, RTT_sample);
+                    WindowSize_Current = cc.getWindow();
+                }
+                updatePacingRate();
 
-                    if (Packet_cnt != SendingQueue.size()) {
-                        int SendEnd_new = Math.min(SendingQueue.size(),
-                                SendBase + WindowSize_Current);
-                        SendIndex = SendBase;
-                        while (SendIndex < SendEnd_new) {
-                            PacketBuf packet = SendingQueue.get(SendIndex);
-                            if (packet.isSent == false) {
-                                //Send packet
-                                packet.isSent = true;
-                                packet.resendTime = Instant.now().plus(packet.TIMEOUT).minusNanos(1);
-                                packet.packet.setSocketAddress(address);
-                                datagramSocket.send(packet.packet.pack());
-                            }
-                            SendIndex++;
-                        }
-                        SendEnd = SendEnd_new;
+                int SendIndex;
+                for (SendIndex = SendBase; SendIndex < SendEnd; SendIndex++) {
+                    PacketBuf Packet_Queue = SendingQueue.get(SendIndex);
+                    if (Packet_Queue.isACKRcv == true) {
+                        this.SendBase++;
+                        Packet_Queue.reset();
+                        PacketBufPool.give(Packet_Queue);
+                    }
+                    else {
+                        break;
                     }
+                }
+                if (SendingQueue.head() < SendBase) {
+                    SendingQueue.releaseTo(SendBase);
+                    Progress_time = now;
+                }
 
-                    if (Packet_cnt == SendingQueue.size()) {
-                        isComplete = true;
-                        System.out.println("[Sender] Transmission completed.");
-                        System.out.println("[Sender] Send thread terminated.");
-                        stop();
+                // Everything below SendEnd has been sent, only the window growth is new;
+                // new packets go out as the pacer allows, the rest on a later pass
+                int SendEnd_new = Math.min(Outgoing.tail(),
+                        SendBase + WindowSize_Current);
+                Pacing_deadline = Long.MAX_VALUE;
+                for (SendIndex = Math.max(SendBase, SendEnd); SendIndex < SendEnd_new; SendIndex++) {
+                    if (!isPaced(now))
+                        break;
+                    PacketBuf packet = PacketBufPool.take();
+                    packet.packet = Outgoing.get(SendIndex);
+                    SendingQueue.add(packet);
+                    //Send packet
+                    transmit(packet, now);
+                    Loss_rate -= LOSS_GAIN * Loss_rate;
+                    // The BSN is not part of any block
+                    if (Fec_block > 0 && SendIndex > 0) {
+                        addToBlock(packet.packet);
+                        if (SendIndex + 1 - Block_start >= Block_size)
+                            sendParity(SendIndex + 1, now);
                     }
+                }
+                // Packets beyond a shrunken window stay in flight and under the timer
+                SendEnd = Math.max(SendEnd, SendIndex);
+                // FEC for the tail of a transfer
+                if (Fec_block > 0 && Block_start < SendEnd
+                        && (SendEnd == Finish_index || isFinished && SendEnd == Outgoing.tail()))
+                    sendParity(SendEnd, now);
 
-                    //Timer
-                    SendIndex = SendBase;
-                    while ( SendIndex < SendEnd ) {
+                //Fast retransmit: a hole is lost once three duplicate ACKs arrived for it,
+                //or once DUPACK_THRESHOLD later packets were SACKed above it
+                if (isACKRcv == true) {
+                    int Lost_end = High_SACK_index - DUPACK_THRESHOLD + 1;
+                    if (Dup_ACK_cnt >= DUPACK_THRESHOLD)
+                        Lost_end = Math.max(Lost_end, SendBase + 1);
+                    Lost_end = Math.min(Lost_end, SendEnd);
+                    for (SendIndex = Math.max(SendBase, Fast_index); SendIndex < Lost_end; SendIndex++) {
                         PacketBuf Packet_Queue = SendingQueue.get(SendIndex);
-                        // System.out.println("[Sender] Sending Packets:" + (i-SendBase+1) + "/" + (SendEnd-SendBase+1));
+                        if (Packet_Queue.isACKRcv == true || Packet_Queue.isFastRetrans == true
+                                || Packet_Queue.Retrans_cnt >= MAXIMUN_RESEND)
+                            continue;
+                        // One window reduction per loss episode
+                        if (SendBase >= Recovery_index) {
+                            cc.onLoss();
+                            WindowSize_Current = cc.getWindow();
+                            Recovery_index = SendEnd;
+                        }
+                        Packet_Queue.isFastRetrans = true;
+                        retransmit(Packet_Queue, now);
+                        metrics.Fast_retransmissions.increment();
+                        if (GUDPLog.isDebug())
+                            GUDPLog.debug("[Sender] Fast retransmission:"
+                                    + Packet_Queue.Retrans_cnt
+                                    + "/"
+                                    + MAXIMUN_RESEND);
+                    }
+                    Fast_index = Math.max(Fast_index, Lost_end);
+                }
 
-                        boolean TimeoutFlag;
-                        if ( Packet_Queue.isACKRcv == false && Packet_Queue.isSent == true && Instant.now().isAfter(Packet_Queue.resendTime) == true )
-                            TimeoutFlag = true;
-                        else
-                            TimeoutFlag = false;
+                if (Peer_MSS < 0 && Plain_ACK_cnt > 0 && now - Plain_ACK_time >= rtt.currentNanos())
+                    Peer_MSS = 0;
 
-                        if (TimeoutFlag == true && Packet_Queue.Retrans_cnt < MAXIMUN_RESEND) {
-                            // Send packet in queue
-                            Packet_Queue.isSent = true;
-                            Packet_Queue.resendTime = Instant.now().plus(Packet_Queue.TIMEOUT).minusNanos(1);
-                            Packet_Queue.packet.setSocketAddress(address);
-                            datagramSocket.send(Packet_Queue.packet.pack());
+                Acked_cnt = 0;
+                RTT_packet = null;
+                isACKRcv = false;
+            }
 
-                            System.out.println("[Sender] Retransmission:"
-                                    + (Packet_Queue.Retrans_cnt + 1)
-                                    + "/"
-                                    + MAXIMUN_RESEND);
-                            Packet_Queue.Retrans_cnt++;
-                        }
-                        if (Packet_Queue.Retrans_cnt != MAXIMUN_RESEND) {
-                            SendIndex++;
-                            continue;
-                        }
-                        else {
-                            isComplete = true;
-                            System.out.println("[Sender] Transmission failed.");
-                            System.out.println("[Sender] Send thread terminated.");
-                            this.stop();
-                            SendIndex++;
-                        }
+            /* When a plain ACK of the BSN stands for no answer, Long.MAX_VALUE if none came */
+            long plainACKDeadline() {
+                if (Peer_MSS >= 0 || Plain_ACK_cnt == 0)
+                    return Long.MAX_VALUE;
+                return Plain_ACK_time + rtt.currentNanos();
+            }
+
+            /* An expired retransmission timer; false if the destination has to be dropped */
+            boolean onTimeout(PacketBuf Packet_Queue) throws IOException {
+                if (Packet_Queue.Retrans_cnt >= MAXIMUN_RESEND)
+                    return false;
+                // An unanswered MTU probe: try the next smaller size
+                if (isProbing && Packet_Queue.packet.getType() == GUDPPacket.TYPE_BSN)
+                    Probe_size = nextProbeSize(Probe_size);
+
+                // Exponential backoff is driven by the oldest outstanding packet only,
+                // so a burst of expiries in the same window doubles the RTO once
+                if (Packet_Queue.packet.getSeqno() - BSNNum == SendBase) {
+                    rtt.backoff();
+                    cc.onTimeout();
+                    WindowSize_Current = cc.getWindow();
+                }
+                // Send packet in queue
+                retransmit(Packet_Queue, System.nanoTime());
+                metrics.Timeouts.increment();
+                metrics.RTO.record(rtt.currentNanos());
+
+                if (GUDPLog.isDebug())
+                    GUDPLog.debug("[Sender] Retransmission:"
+                            + Packet_Queue.Retrans_cnt
+                            + "/"
+                            + MAXIMUN_RESEND
+                            + ", RTO "
+                            + rtt.getRTO().toMillis() + " ms");
+                return true;
+            }
+
+            boolean isDone() {
+                return Packet_cnt == Outgoing.tail();
+            }
+
+            /* Both the destination's pacer and the socket's rate cap have tokens left */
+            private boolean isPaced(long now) {
+                if (Pacer.isAvailable(now) && Rate_cap.isAvailable(now))
+                    return true;
+                Pacing_deadline = Math.max(Pacer.nextAvailable(now), Rate_cap.nextAvailable(now));
+                return false;
+            }
+
+            /*
+             * Pace at the rate the window controller derives from the window and the
+             * smoothed RTT; no pacing until there is an RTT sample.
+             */
+            private void updatePacingRate() {
+                long srtt = rtt.srttNanos();
+                if (!isPacing || srtt == 0) {
+                    Pacer.setRate(0, 0);
+                    return;
+                }
+                int packetBytes = GUDPPacket.HEADER_SIZE + Max_segment;
+                double rate = cc.getPacingRate(srtt, packetBytes);
+                Pacer.setRate(rate, burstOf(rate));
+            }
+
+            private void transmit(PacketBuf Packet_Queue, long now) throws IOException {
+                // Retransmissions are not held back, but they use up tokens as well
+                int bytes = GUDPPacket.HEADER_SIZE + Packet_Queue.packet.getPayloadLength();
+                Pacer.consume(bytes, now);
+                Rate_cap.consume(bytes, now);
+                metrics.sent(bytes);
+                Packet_Queue.isSent = true;
+                Packet_Queue.sendTime = now;
+                Packet_Queue.resendTime = now + rtt.currentNanos();
+                armTimer(Packet_Queue);
+                Packet_Queue.packet.setSocketAddress(address);
+                if (Packet_Queue.packet.getType() != GUDPPacket.TYPE_BSN) {
+                    GUDPSocket.this.transmit(Packet_Queue.packet);
+                    return;
+                }
+                // An MTU probe over the interface MTU fails right away (EMSGSIZE) rather
+                // than going unanswered: try the next smaller size, as on a timeout
+                while (true) {
+                    Packet_Queue.packet.setBSNOffer(Probe_size, Fec_block > 0 ? GUDPPacket.BSN_FLAG_FEC : 0,
+                            isProbing ? Probe_size : 0);
+                    try {
+                        GUDPSocket.this.transmit(Packet_Queue.packet);
+                        return;
+                    } catch (IOException e) {
+                        if (!isProbing || Probe_size <= GUDPPacket.MAX_DATA_LEN)
+                            throw e;
+                        if (GUDPLog.isDebug())
+                            GUDPLog.debug("[Sender] MTU probe of " + Probe_size + " bytes failed: " + e);
+                        Probe_size = nextProbeSize(Probe_size);
                     }
+                }
+            }
 
-                } catch (IOException e) { throw new RuntimeException(e); }
+            private void retransmit(PacketBuf Packet_Queue, long now) throws IOException {
+                transmit(Packet_Queue, now);
+                Packet_Queue.Retrans_cnt++;
+                metrics.Retransmissions.increment();
+                Loss_rate += LOSS_GAIN * (1 - Loss_rate);
+            }
+
+            /* FEC: a packet of the open block went out for the first time */
+            private void addToBlock(GUDPPacket packet) {
+                packet.xorPayloadInto(Block_data);
+                Block_len = Math.max(Block_len, packet.getPayloadLength());
+                Block_xor_len ^= packet.getPayloadLength();
+                Block_xor_type ^= packet.getType();
+            }
+
+            /*
+             * Send the parity of the open block, which ends before End_index, and open the
+             * next one. A block whose parity would not fit in the peer's segment size, or
+             * whose peer does not negotiate and so cannot know parity, goes without.
+             */
+            private void sendParity(int End_index, long now) throws IOException {
+                int Peer_limit = Peer_MSS > 0 ? Peer_MSS : GUDPPacket.MAX_DATA_LEN;
+                if (Peer_MSS != 0 && GUDPPacket.PARITY_HEADER_SIZE + Block_len <= Peer_limit) {
+                    Parity_packet.setParity(BSNNum + Block_start, End_index - Block_start,
+                            Block_xor_len, Block_xor_type, Block_data, Block_len);
+                    Parity_packet.setSocketAddress(address);
+                    int bytes = GUDPPacket.HEADER_SIZE + Parity_packet.getPayloadLength();
+                    Pacer.consume(bytes, now);
+                    Rate_cap.consume(bytes, now);
+                    metrics.sent(bytes);
+                    metrics.Parity_sent.increment();
+                    GUDPSocket.this.transmit(Parity_packet);
+                }
+                Arrays.fill(Block_data, 0, Block_len, (byte) 0);
+                Block_start = End_index;
+                Block_size = nextBlockSize();
+                Block_len = 0;
+                Block_xor_len = 0;
+                Block_xor_type = 0;
+            }
+
+            /* XOR parity repairs one loss per block: aim at about one loss every other block */
+            private int nextBlockSize() {
+                if (!isAdaptiveFEC)
+                    return Fec_block;
+                if (Loss_rate <= 0.5 / GUDPPacket.MAX_FEC_BLOCK)
+                    return GUDPPacket.MAX_FEC_BLOCK;
+                return Math.max(FEC_MIN_BLOCK, (int) (0.5 / Loss_rate));
+            }
+
+            /*
+             * Mark one packet as acknowledged. Among the packets newly acknowledged, the one
+             * sent last is used for the RTT sample; Karn's rule excludes retransmitted packets,
+             * whose ACK is ambiguous.
+             */
+            private void markACK(int index) {
+                PacketBuf Packet_Queue = SendingQueue.get(index);
+                if (Packet_Queue.isACKRcv == true || Packet_Queue.isSent == false)
+                    return;
+                Packet_Queue.isACKRcv = true;
+                this.Packet_cnt++;
+                this.Acked_cnt++;
+                metrics.Acked_bytes.add(Packet_Queue.packet.getPayloadLength());
+                if (Packet_Queue.Retrans_cnt == 0
+                        && (RTT_packet == null || Packet_Queue.sendTime - RTT_packet.sendTime > 0))
+                    RTT_packet = Packet_Queue;
+            }
+
+            private void drop(String reason) {
+                isDropped = true;
+                GUDPLog.warn("[Sender] Destination " + address + " dropped: " + reason);
+            }
+        }
+
+        void addDestination(InetSocketAddress address) {
+            if (Peer_index.containsKey(address))
+                return;
+            Peer_index.put(address, Destinations.size());
+            Destinations.add(new Destination(address, Destinations.size()));
+        }
+
+        /* Index of the destination at address, for ACK records; -1 if unknown */
+        int indexOf(InetSocketAddress address) {
+            Integer index = Peer_index.get(address);
+            return index == null ? -1 : index;
+        }
+
+        Destination primary() {
+            return Destinations.isEmpty() || Destinations.get(0).cc == null ? null : Destinations.get(0);
+        }
+
+        /* Probe sizes, from large to small: jumbo, Ethernet, IPv6 minimum MTU, classic GUDP */
+        int nextProbeSize(int size) {
+            int[] ladder = {GUDPPacket.JUMBO_SEGMENT_LEN, GUDPPacket.ETHERNET_SEGMENT_LEN,
+                    1280 - 48 - GUDPPacket.HEADER_SIZE, GUDPPacket.MAX_DATA_LEN};
+            for (int step: ladder)
+                if (step < size)
+                    return step;
+            return GUDPPacket.MAX_DATA_LEN;
+        }
+
+        /* Smallest segment size over the live destinations, 0 if one does not negotiate */
+        int negotiatedMSS() {
+            int mss = Max_segment;
+            for (Destination destination: Destinations)
+                if (!destination.isDropped && destination.Peer_MSS >= 0)
+                    mss = Math.min(mss, destination.Peer_MSS);
+            return mss;
+        }
+
+        /*
+         * Largest segment every live destination accepts: the negotiated one, or
+         * GUDPPacket.MAX_DATA_LEN while a destination has not answered the BSN yet, does
+         * not negotiate, or is not known yet.
+         */
+        int peerSegment() {
+            int mss = Destinations.isEmpty() ? GUDPPacket.MAX_DATA_LEN : Max_segment;
+            for (Destination destination: Destinations)
+                if (!destination.isDropped)
+                    mss = Math.min(mss, destination.Peer_MSS > 0 ? destination.Peer_MSS : GUDPPacket.MAX_DATA_LEN);
+            return mss;
+        }
+
+        double burstOf(double rate) {
+            return Math.max(2.0 * (GUDPPacket.HEADER_SIZE + Max_segment), rate * PACING_QUANTUM / 1e9);
+        }
+
+        /* Segment room taken by the parity header when FEC is on */
+        int parityOverhead() {
+            return Fec_block > 0 ? GUDPPacket.PARITY_HEADER_SIZE : 0;
+        }
+
+        /* Send buffer budget of a packet with a payload of length bytes */
+        int budgetOf(int length) {
+            return Math.min(BufferBytes, GUDPPacket.HEADER_SIZE + length);
+        }
+
+        /* Called once, before the sender runs */
+        void open() {
+            long now = System.nanoTime();
+            if (Fec_block > 0)
+                Parity_packet = newPacket();
+            for (Destination destination: Destinations)
+                destination.open(now);
+        }
+
+        public void run() {
+            ReceiveThread ACK;
+            ACK = new ReceiveThread(ACKBuffer);
+
+            Thread.ofVirtual().name("ACK Receiver").start(ACK);
+            GUDPLog.info("[ACK_Receiver] ACK receive thread started.");
+
+            while (!isComplete) {
+                try {
+                    step();
+
+                    // Sleep until the next deadline; new ACKs, send() and finish() unpark us
+                    if (!isComplete && ACKBuffer.isEmpty()) {
+                        long deadline = nextDeadline();
+                        if (deadline == Long.MAX_VALUE)
+                            LockSupport.park(this);
+                        else
+                            LockSupport.parkNanos(this, deadline - System.nanoTime());
+                    }
+                } catch (IOException e) {
+                    isComplete = true;
+                    GUDPLog.error("[Sender] Transmission failed: " + e);
+                    stop(e);
+                }
             }
             ACK.stop();
         }
 
-        public void stop() {
-            System.exit(0);
+        /*
+         * Deadline of the next retransmission timer, bundle flush or paced transmission,
+         * in System.nanoTime(), or Long.MAX_VALUE
+         */
+        long nextDeadline() {
+            if (isComplete)
+                return Long.MAX_VALUE;
+            PacketBuf next = Timers.peek();
+            long deadline = next == null ? Long.MAX_VALUE : next.timerDeadline;
+            deadline = earliest(deadline, Bundle_deadline);
+            for (Destination destination: Destinations)
+                if (!destination.isDropped) {
+                    deadline = earliest(deadline, destination.Pacing_deadline);
+                    deadline = earliest(deadline, destination.plainACKDeadline());
+                }
+            return deadline;
+        }
+
+        /* Earlier of two System.nanoTime() deadlines, Long.MAX_VALUE standing for none */
+        private long earliest(long deadline, long other) {
+            if (other == Long.MAX_VALUE)
+                return deadline;
+            if (deadline == Long.MAX_VALUE || other - deadline < 0)
+                return other;
+            return deadline;
+        }
+
+        /*
+         * One pass of the sender: take new data and ACKs, slide and fill the windows,
+         * and handle fast retransmissions and expired timers.
+         */
+        void step() throws IOException {
+            if (isComplete)
+                return;
+            long now = System.nanoTime();
+            boolean Finish_seen = isFinished;
+            if (Bundle_deadline != Long.MAX_VALUE && Bundle_deadline - now <= 0)
+                flush();
+            GUDPPacket pending;
+            while ((pending = PendingQueue.poll()) != null)
+                Outgoing.add(pending);
+
+            int Block_cnt;
+            while ((Block_cnt = ACKBuffer.poll(ACK_record)) >= 0) {
+                Destination destination = Destinations.get(ACK_record[0]);
+                if (!destination.isDropped)
+                    destination.onACK(ACK_record, Block_cnt);
+            }
+
+            for (Destination destination: Destinations)
+                if (!destination.isDropped)
+                    destination.step(now);
+
+            //Timer: only the deadlines that expired are visited
+            PacketBuf Packet_Queue;
+            while ((Packet_Queue = Timers.poll()) != null) {
+                Packet_Queue.isTimerQueued = false;
+                // Stale entry: the packet was ACKed, or recycled and not sent again yet
+                if (Packet_Queue.isACKRcv == true || Packet_Queue.isSent == false
+                        || Packet_Queue.owner.isDropped)
+                    continue;
+                // Re-sent since the timer was armed: wait for the later deadline
+                if (Packet_Queue.resendTime - Packet_Queue.timerDeadline > 0) {
+                    armTimer(Packet_Queue);
+                    continue;
+                }
+                if (!Packet_Queue.owner.onTimeout(Packet_Queue))
+                    Packet_Queue.owner.drop("retransmission limit reached");
+            }
+
+            // Shared packets are released up to the slowest live destination
+            int Live_cnt = 0;
+            int Release_index = Outgoing.tail();
+            int Lead_index = 0;
+            boolean isDone = true;
+            for (Destination destination: Destinations) {
+                if (destination.isDropped)
+                    continue;
+                Lead_index = Math.max(Lead_index, destination.SendBase);
+            }
+            for (Destination destination: Destinations) {
+                if (destination.isDropped)
+                    continue;
+                if (Straggler_timeout > 0 && destination.SendBase < Lead_index
+                        && now - destination.Progress_time > Straggler_timeout) {
+                    destination.drop("straggler");
+                    continue;
+                }
+                Live_cnt++;
+                Release_index = Math.min(Release_index, destination.SendBase);
+                isDone &= destination.isDone();
+            }
+            if (Negotiated.getCount() > 0) {
+                boolean isNegotiated = true;
+                for (Destination destination: Destinations)
+                    if (!destination.isDropped && destination.Peer_MSS < 0)
+                        isNegotiated = false;
+                if (isNegotiated)
+                    Negotiated.countDown();
+            }
+            for (int i = Outgoing.head(); i < Release_index; i++) {
+                GUDPPacket packet = Outgoing.get(i);
+                // The BSN is not part of the budget
+                if (i > 0) {
+                    SendBuffer_Packets.release();
+                    SendBuffer_Bytes.release(budgetOf(packet.getPayloadLength()));
+                    PacketPool.give(packet);
+                }
+            }
+            Outgoing.releaseTo(Release_index);
+
+            // Transfers every live destination ACKed in full
+            Boundary boundary;
+            while ((boundary = Boundaries.peek()) != null && boundary.End_index <= Release_index) {
+                Boundaries.poll();
+                boundary.completion.complete(null);
+            }
+
+            if (Live_cnt == 0 && !Destinations.isEmpty()) {
+                isComplete = true;
+                GUDPLog.error("[Sender] Transmission failed.");
+                GUDPLog.info("[Sender] Send thread terminated.");
+                stop(new IOException("No destination left"));
+                return;
+            }
+            if (Finish_seen == true && isDone) {
+                isComplete = true;
+                GUDPLog.info("[Sender] Transmission completed.");
+                GUDPLog.info("[Sender] Send thread terminated.");
+                stop(null);
+            }
+        }
+
+        /*
+         * A packet sits in the timer queue at most once. An entry that is queued with a
+         * deadline later than the new one is moved; an earlier one is re-armed on expiry.
+         */
+        private void armTimer(PacketBuf Packet_Queue) {
+            if (Packet_Queue.isTimerQueued == true) {
+                if (Packet_Queue.timerDeadline - Packet_Queue.resendTime <= 0)
+                    return;
+                Timers.remove(Packet_Queue);
+            }
+            Packet_Queue.timerDeadline = Packet_Queue.resendTime;
+            Packet_Queue.isTimerQueued = true;
+            Timers.add(Packet_Queue);
+        }
+
+        /*
+         * The session failed: application threads waiting for send buffer budget or
+         * for the BSN exchange wake up, and they and later calls throw failure.
+         */
+        void fail(IOException failure) {
+            if (Failure != null)
+                return;
+            Failure = failure;
+            SendBuffer_Packets.release();
+            SendBuffer_Bytes.release(BufferBytes);
+            Negotiated.countDown();
+        }
+
+        void checkFailure() throws IOException {
+            if (Failure != null)
+                throw Failure;
+        }
+
+        public void stop(IOException failure) {
+            if (failure != null)
+                fail(failure);
+            Negotiated.countDown();
+            Boundary boundary;
+            while ((boundary = Boundaries.poll()) != null)
+                boundary.completion.completeExceptionally(failure != null ? failure
+                        : new IOException("Session closed"));
+            senderStopped(failure);
         }
     }
 
     class ReceiveThread implements Runnable {
-        // Priority Queue: Sort packets
-        private Queue<GUDPPacket> ReceiveBuffer_Sort;
-        private BlockingQueue<GUDPPacket> ReceiveQueue;
-
-        private int ExpSeqNum = 0;
-        private boolean flag = true;
+        // Per-peer receive state, keyed by the sender's address
+        final Map<InetSocketAddress, ReceiveSession> Sessions = new ConcurrentHashMap<>();
+        // Sessions with in-order packets that did not fit in the receive queue
+        private final ArrayDeque<ReceiveSession> Blocked = new ArrayDeque<>();
+        BlockingQueue<GUDPPacket> ReceiveQueue;
+        // Receive buffers, given back by receive() once the application copied the data out
+        final BufferPool<GUDPPacket> Pool;
 
-        List<Integer> ACKBuffer_Recv;
+        // Slots are seqno & (size - 1): the sizes are rounded up to a power of two,
+        // as in SequenceRing
+        private final int RecvWindow = Integer.highestOneBit(Math.max(1, GUDPPacket.MAX_WINDOW_SIZE - 1)) << 1;
+        // Finished sessions stay around for late retransmissions, then make room
+        private final long SESSION_LINGER = RttEstimator.MAX_RTO.toNanos();
+        private volatile boolean flag = true;
+        private final int[] SackBlocks = new int[2 * GUDPPacket.MAX_SACK_BLOCKS];
+        private final GUDPPacket ACK_template = GUDPPacket.allocate();
+        // FEC: recent packets of a session are kept for as long as a block may need them
+        private final int FEC_HISTORY = Integer.highestOneBit(Math.max(1, 2 * GUDPPacket.MAX_FEC_BLOCK - 1)) << 1;
+        private byte[] Repair_data;
 
-        VSFtp FtpPacket;
+        AckQueue ACKBuffer_Recv;
 
         //constructor
-        public ReceiveThread(List<Integer> ackbuffer) {
-            System.out.println("[Receiver] Receive thread started.");
+        public ReceiveThread(AckQueue ackbuffer) {
+            GUDPLog.info("[Receiver] Receive thread started.");
 
-            this.ReceiveBuffer_Sort = new PriorityQueue<>(Comparator.comparingInt(GUDPPacket::getSeqno));
-            this.ReceiveQueue = new LinkedBlockingQueue<>();
+            this.ReceiveQueue = new ArrayBlockingQueue<>(RecvWindow);
+            this.Pool = new BufferPool<>(2 * RecvWindow, GUDPSocket.this::newPacket);
 
             this.ACKBuffer_Recv = ackbuffer;
         }
 
-        private void sendACK(GUDPPacket Packet) throws IOException {
-            int ACK_Num = Packet.getSeqno()+1;
+        /*
+         * The receive side of one peer's transfer: its own sequence space, reorder
+         * buffer and ACK state, so concurrent senders do not disturb each other.
+         */
+        class ReceiveSession {
+            // Reorder buffer: out-of-order packets inside the receive window, slot = seqno modulo window
+            private final GUDPPacket[] ReceiveBuffer_Sort = new GUDPPacket[RecvWindow];
+            private final InetSocketAddress Peer_address;
+            private final int BSNNum;
+            private int ExpSeqNum;
+            private int High_seqno;
+            private int Buffered_cnt = 0;
+            private boolean isBlocked = false;
+            volatile boolean isFinished = false;
+            volatile long Finish_time;
+            // Last DATA from the peer; a session carries on with more transfers after an END
+            long Active_time;
+            // MSS answered in the BSN exchange, repeated on ACKs until data flows and for
+            // MSS_OPTION_ACKS ACKs after, in case the BSN's ACK was lost
+            private int Answer_MSS;
+            private int Answer_left = GUDPPacket.MSS_OPTION_ACKS;
+            private boolean isDataSeen = false;
+            // FEC history, slot = seqno modulo FEC_HISTORY; null unless the sender sends parity
+            private int[] History_seqno;
+            private int[] History_len;
+            private int[] History_type;
+            private byte[][] History_data;
 
-            ByteBuffer buffer = ByteBuffer.allocate(GUDPPacket.HEADER_SIZE);
-            buffer.order(ByteOrder.BIG_ENDIAN);
+            ReceiveSession(InetSocketAddress peer, int bsn) {
+                Peer_address = peer;
+                BSNNum = bsn;
+                ExpSeqNum = bsn + 1;
+                High_seqno = ExpSeqNum;
+            }
 
-            GUDPPacket packet = new GUDPPacket(buffer);
-            SetPacket(packet, GUDPPacket.TYPE_ACK, GUDPPacket.GUDP_VERSION, ACK_Num, 0);
-            packet.setSocketAddress(Packet.getSocketAddress());
+            /* The BSN announced parity packets: keep copies of the packets they cover */
+            private void enableFEC() {
+                History_seqno = new int[FEC_HISTORY];
+                Arrays.fill(History_seqno, BSNNum);
+                History_len = new int[FEC_HISTORY];
+                History_type = new int[FEC_HISTORY];
+                History_data = new byte[FEC_HISTORY][Max_segment];
+                if (Repair_data == null)
+                    Repair_data = new byte[Max_segment];
+            }
 
-            datagramSocket.send(packet.pack());
-            System.out.println("[Receiver] ACK sent: "
-                    + ACK_Num);
-        }
+            private boolean isBuffered(int Seqno) {
+                return ReceiveBuffer_Sort[Seqno & (RecvWindow - 1)] != null;
+            }
 
-        public void run() {
-            while (this.flag) {
-                try {
-                    byte[] buf = new byte[GUDPPacket.MAX_DATAGRAM_LEN];
-                    DatagramPacket udpPacket = new DatagramPacket(buf, buf.length);
-                    datagramSocket.receive(udpPacket);
-                    GUDPPacket gudppacket = GUDPPacket.unpack(udpPacket);
-                    if (gudppacket.getType() == GUDPPacket.TYPE_BSN) {
-                        ReceiveBuffer_Sort.add(gudppacket);
-                        ExpSeqNum = gudppacket.getSeqno() + 1;
-                        sendACK(gudppacket);
-                    } else if (gudppacket.getType() == GUDPPacket.TYPE_DATA) {
-                        if (gudppacket.getSeqno() == ExpSeqNum) { // Send ACK only when arriving packets number = ExpSeqNum
-                            ReceiveBuffer_Sort.add(gudppacket);
-                            sendACK(gudppacket);
+            private boolean isDuplicate(int Seqno) {
+                return Seqno < ExpSeqNum || (Seqno < ExpSeqNum + RecvWindow && isBuffered(Seqno));
+            }
+
+            /* Keep a packet inside the receive window, in any order; false if not needed */
+            private boolean hold(GUDPPacket gudppacket) {
+                int Seqno = gudppacket.getSeqno();
+                if (Seqno < ExpSeqNum || Seqno >= ExpSeqNum + RecvWindow || isBuffered(Seqno))
+                    return false;
+                ReceiveBuffer_Sort[Seqno & (RecvWindow - 1)] = gudppacket;
+                Buffered_cnt++;
+                High_seqno = Math.max(High_seqno, Seqno);
+                if (History_seqno != null) {
+                    int slot = Seqno & (FEC_HISTORY - 1);
+                    History_seqno[slot] = Seqno;
+                    History_len[slot] = gudppacket.getPayloadLength();
+                    History_type[slot] = gudppacket.getType();
+                    gudppacket.getPayload(History_data[slot], History_len[slot]);
+                }
+                return true;
+            }
+
+            /*
+             * FEC: when exactly one packet of the parity's block is missing, and all the
+             * others are still in the history, rebuild it into the reorder buffer.
+             * Returns its seqno, or -1 if there is nothing to repair.
+             */
+            private int repair(GUDPPacket parity) throws IOException {
+                int Start = parity.getSeqno();
+                int count = parity.getParityCount();
+                if (History_seqno == null || count <= 0 || count > GUDPPacket.MAX_FEC_BLOCK || Start <= BSNNum)
+                    return -1;
+                int Missing = -1;
+                for (int seq = Start; seq < Start + count; seq++) {
+                    if (History_seqno[seq & (FEC_HISTORY - 1)] == seq)
+                        continue;
+                    // Delivered and forgotten, or a second loss: cannot be repaired
+                    if (seq < ExpSeqNum || isBuffered(seq) || Missing >= 0)
+                        return -1;
+                    Missing = seq;
+                }
+                if (Missing < 0 || Missing >= ExpSeqNum + RecvWindow)
+                    return -1;
+
+                int length = parity.getParityData(Repair_data);
+                int Len = parity.getParityLength();
+                int Type = parity.getParityType();
+                for (int seq = Start; seq < Start + count; seq++) {
+                    int slot = seq & (FEC_HISTORY - 1);
+                    if (seq == Missing)
+                        continue;
+                    byte[] data = History_data[slot];
+                    for (int i = 0; i < History_len[slot]; i++)
+                        Repair_data[i] ^= data[i];
+                    Len ^= History_len[slot];
+                    Type ^= History_type[slot];
+                }
+                if (Len < 0 || Len > length || (Type != GUDPPacket.TYPE_DATA && Type != GUDPPacket.TYPE_BUNDLE))
+                    return -1;
+
+                GUDPPacket packet = Pool.take();
+                SetPacket(packet, (short) Type, GUDPPacket.GUDP_VERSION, Missing, 0);
+                packet.setPayload(Repair_data, 0, Len);
+                packet.setSocketAddress(Peer_address);
+                hold(packet);
+                return Missing;
+            }
+
+            /*
+             * ACK the arrival of packet Seqno: cumulative ACK up to ExpSeqNum, and the
+             * out-of-order ranges held in the reorder buffer as SACK blocks. The block
+             * holding the packet that triggered the ACK goes first, as in RFC 2018.
+             */
+            private void sendACK(int Seqno) throws IOException {
+                int mss = 0;
+                if (Answer_left > 0) {
+                    mss = Answer_MSS;
+                    if (isDataSeen)
+                        Answer_left--;
+                }
+                sendACK(Seqno, mss);
+            }
+
+            private void sendACK(int Seqno, int mss) throws IOException {
+                int ACK_Num = ExpSeqNum;
+                int Block_cnt = 0;
+
+                if (Buffered_cnt > 0) {
+                    if (Seqno > ExpSeqNum && Seqno <= High_seqno && isBuffered(Seqno)) {
+                        int start = Seqno, end = Seqno + 1;
+                        while (start - 1 > ExpSeqNum && isBuffered(start - 1))
+                            start--;
+                        while (end <= High_seqno && isBuffered(end))
+                            end++;
+                        SackBlocks[0] = start;
+                        SackBlocks[1] = end;
+                        Block_cnt = 1;
+                    }
+                    int seq = ExpSeqNum + 1;
+                    while (seq <= High_seqno && Block_cnt < GUDPPacket.MAX_SACK_BLOCKS) {
+                        if (!isBuffered(seq)) {
+                            seq++;
+                            continue;
+                        }
+                        int start = seq;
+                        while (seq <= High_seqno && isBuffered(seq))
+                            seq++;
+                        if (Block_cnt == 0 || start != SackBlocks[0]) {
+                            SackBlocks[2 * Block_cnt] = start;
+                            SackBlocks[2 * Block_cnt + 1] = seq;
+                            Block_cnt++;
                         }
-                    } else if (gudppacket.getType() == GUDPPacket.TYPE_ACK) {
-                        ACKBuffer_Recv.add(gudppacket.getSeqno());
                     }
-                } catch (IOException e) { throw new RuntimeException(e); }
+                }
 
-                while (true) {
-                    GUDPPacket packet = ReceiveBuffer_Sort.peek();
-                    if (Objects.isNull(packet)) {
+                GUDPPacket packet = ACK_template;
+                SetPacket(packet, GUDPPacket.TYPE_ACK, GUDPPacket.GUDP_VERSION, ACK_Num, 0);
+                packet.setSackBlocks(SackBlocks, Block_cnt, mss);
+                packet.setSocketAddress(Peer_address);
+
+                transmit(packet);
+                metrics.ACKs_sent.increment();
+                if (GUDPLog.isDebug())
+                    GUDPLog.debug("[Receiver] ACK sent: "
+                            + ACK_Num);
+            }
+
+            /* Deliver the in-order prefix of the reorder buffer to the application */
+            private boolean deliverInOrder() throws InterruptedException {
+                boolean isAdvanced = false;
+                GUDPPacket packet;
+                while ((packet = ReceiveBuffer_Sort[ExpSeqNum & (RecvWindow - 1)]) != null) {
+                    if (!deliver(packet)) {
+                        if (!isBlocked) {
+                            isBlocked = true;
+                            Blocked.add(this);
+                        }
                         break;
                     }
-                    if (packet.getSeqno() >= ExpSeqNum) {
-                        ExpSeqNum++;
-                        ReceiveBuffer_Sort.remove();
-                        ReceiveQueue.add(packet);
-                    } else {
-                        ReceiveBuffer_Sort.remove();
+                    ReceiveBuffer_Sort[ExpSeqNum & (RecvWindow - 1)] = null;
+                    Buffered_cnt--;
+                    ExpSeqNum++;
+                    isAdvanced = true;
+                }
+                return isAdvanced;
+            }
+
+            /* Replaced by a new transfer from the same peer: recycle what is still held */
+            private void discard() {
+                for (int i = 0; i < RecvWindow && Buffered_cnt > 0; i++) {
+                    if (ReceiveBuffer_Sort[i] != null) {
+                        Pool.give(ReceiveBuffer_Sort[i]);
+                        ReceiveBuffer_Sort[i] = null;
+                        Buffered_cnt--;
                     }
                 }
+                if (isBlocked) {
+                    Blocked.remove(this);
+                    isBlocked = false;
+                }
+            }
+        }
+
+        public void run() {
+            IOException failure = null;
+            while (this.flag) {
+                try {
+                    GUDPPacket gudppacket = Pool.take();
+                    DatagramPacket udpPacket = gudppacket.receiveBuffer();
+                    datagramSocket.receive(udpPacket);
+                    gudppacket.load(udpPacket);
+                    if (!process(gudppacket))
+                        Pool.give(gudppacket);
+                } catch (IOException e) {
+                    // Closing the socket is how close() stops us
+                    if (!datagramSocket.isClosed())
+                        failure = e;
+                    break;
+                } catch (InterruptedException e) {
+                    failure = new IOException(e);
+                    break;
+                }
+            }
+            // The sender's ACK receiver reports through the sender
+            if (this == receive) {
+                GUDPLog.info("[Receiver] Receive thread terminated.");
+                receiverStopped(failure);
+            }
+        }
+
+        /*
+         * Input processing of one received GUDP packet. Returns true if the packet is
+         * held in the reorder buffer, false if its buffer can be reused right away.
+         */
+        boolean process(GUDPPacket gudppacket) throws IOException, InterruptedException {
+            boolean isHeld = false;
+            if (gudppacket.getType() == GUDPPacket.TYPE_BSN) {
+                // A retransmitted BSN must not reset a sequence space already in use,
+                // a different BSN starts a new transfer from that peer
+                InetSocketAddress peer = gudppacket.getSocketAddress();
+                ReceiveSession session = Sessions.get(peer);
+                if (session == null || session.BSNNum != gudppacket.getSeqno()) {
+                    if (session != null)
+                        session.discard();
+                    else
+                        expireSessions();
+                    session = new ReceiveSession(peer, gudppacket.getSeqno());
+                    if ((gudppacket.getBSNFlags() & GUDPPacket.BSN_FLAG_FEC) != 0)
+                        session.enableFEC();
+                    Sessions.put(peer, session);
+                }
+                // Answer the offered segment size, if any, with what we accept
+                int offer = gudppacket.getBSNOffer();
+                session.Answer_MSS = offer > 0 ? Math.min(offer, Max_segment) : 0;
+                session.sendACK(gudppacket.getSeqno(), session.Answer_MSS);
+            } else if (gudppacket.getType() == GUDPPacket.TYPE_DATA
+                    || gudppacket.getType() == GUDPPacket.TYPE_BUNDLE) {
+                // Selective repeat: keep every packet inside the receive window, in any order
+                ReceiveSession session = Sessions.get(gudppacket.getSocketAddress());
+                metrics.received(GUDPPacket.HEADER_SIZE + gudppacket.getPayloadLength());
+                if (session != null) {
+                    int Seqno = gudppacket.getSeqno();
+                    session.Active_time = System.nanoTime();
+                    isHeld = session.hold(gudppacket);
+                    session.isDataSeen |= isHeld;
+                    if (!isHeld && session.isDuplicate(Seqno))
+                        metrics.Duplicates.increment();
+                    session.deliverInOrder();
+                    // Duplicates are ACKed as well, the earlier ACK may have been lost
+                    session.sendACK(Seqno);
+                }
+            } else if (gudppacket.getType() == GUDPPacket.TYPE_PARITY) {
+                // Rebuild a lost packet, before the sender has to retransmit it
+                ReceiveSession session = Sessions.get(gudppacket.getSocketAddress());
+                int Seqno = session == null ? -1 : session.repair(gudppacket);
+                if (Seqno >= 0) {
+                    metrics.Packets_rebuilt.increment();
+                    if (GUDPLog.isDebug())
+                        GUDPLog.debug("[Receiver] Rebuilt from parity: " + Seqno);
+                    session.deliverInOrder();
+                    session.sendACK(Seqno);
+                }
+            } else if (gudppacket.getType() == GUDPPacket.TYPE_ACK) {
+                int peer = send.indexOf(gudppacket.getSocketAddress());
+                if (peer >= 0) {
+                    metrics.ACKs_received.increment();
+                    ACKBuffer_Recv.offer(peer, gudppacket);
+                    wakeSender();
+                }
+            }
+            return isHeld;
+        }
+
+        /* Drop finished sessions that have been idle long enough */
+        private void expireSessions() {
+            long now = System.nanoTime();
+            Sessions.values().removeIf(session -> session.isFinished
+                    && now - session.Finish_time > SESSION_LINGER
+                    && now - session.Active_time > SESSION_LINGER);
+        }
+
+        /* The application saw the end of the transfer from peer: the session may expire */
+        void finishSession(InetSocketAddress peer) {
+            ReceiveSession session = Sessions.get(peer);
+            if (session != null) {
+                session.Finish_time = System.nanoTime();
+                session.isFinished = true;
             }
         }
 
+        /*
+         * The application made room in the receive queue: deliver what was held back
+         * and tell the senders.
+         */
+        void resume() throws IOException, InterruptedException {
+            ReceiveSession session;
+            while ((session = Blocked.poll()) != null) {
+                session.isBlocked = false;
+                if (session.deliverInOrder())
+                    session.sendACK(session.ExpSeqNum - 1);
+                // Queue full again, the session went back to the end of the line
+                if (session.isBlocked)
+                    break;
+            }
+        }
+
+        /* Stop after the datagram being waited for; closing the socket stops at once */
         public void stop() {
             this.flag = false;
-            System.out.println("[Receiver] Receive thread terminated.");
-            System.exit(0);
         }
     }
 
-    class PacketBuf {
-        final GUDPPacket packet;
-        Instant resendTime;
+    /*
+     * A packet in the send window of one destination. It doubles as its own
+     * retransmission timer entry and is recycled through the destination's pool once
+     * ACKed; the encapsulated packet itself is shared by all destinations.
+     */
+    class PacketBuf implements Delayed {
+        final SendThread.Destination owner;
+        GUDPPacket packet;
+        long sendTime;      // System.nanoTime() of the latest (re)transmission
+        long resendTime;
+        long timerDeadline; // deadline the timer queue entry is ordered by
+        boolean isTimerQueued;
         boolean isSent;
         boolean isACKRcv;
+        boolean isFastRetrans;
         int Retrans_cnt;
 
-        final Duration TIMEOUT;
+        public PacketBuf(SendThread.Destination owner) {
+            this.owner = owner;
+            isSent = false;
+            Retrans_cnt = 0;
+        }
 
-        public PacketBuf(GUDPPacket packet) {
-            this.packet = packet;
+        /* Back to the pool state; the timer fields stay, the entry may still be queued */
+        void reset() {
+            packet = null;
             isSent = false;
+            isACKRcv = false;
+            isFastRetrans = false;
             Retrans_cnt = 0;
-            this.TIMEOUT = Duration.ofMillis(1000);
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(timerDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            return Long.compare(timerDeadline, ((PacketBuf) other).timerDeadline);
         }
     }
 }
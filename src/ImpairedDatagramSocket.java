@@ -0,0 +1,381 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Network impairment emulator: a DatagramSocket that GUDPSocket can use in place of
+ * a plain one. What it sends goes through random or bursty (Gilbert-Elliott) loss,
+ * duplication, delay with jitter, reordering and a bandwidth cap with a bounded
+ * queue; use one at each end to impair both directions. The random decisions of a
+ * datagram come from the seed, its identity (see identity()) and how many times the
+ * same datagram was sent before: a given packet, or its n-th retransmission, sees
+ * the same loss, duplication, delay and reordering in every run with that seed,
+ * whatever the timing of the others. Sends are counted in a fixed table per
+ * destination, by GUDP seqno, so a datagram sent again COUNT_SLOTS / 4 seqnos
+ * later counts from one again. Which datagrams a transfer sends still
+ * depends on timing, e.g. spurious retransmissions and duplicate ACKs, so totals
+ * can differ a little between runs. The state of bursty loss, which moves from
+ * packet to packet, and the queue of the bandwidth cap depend on the order of
+ * sends. Delayed packets are sent at their due time by a thread of their own.
+ */
+public class ImpairedDatagramSocket extends DatagramSocket {
+    // Send count slots per destination: four kinds of datagram for each seqno
+    private static final int COUNT_SLOTS = 1 << 16;
+    private long Seed = 0;
+    // Destinations, by address, in the order first sent to
+    private final Map<SocketAddress, Peer> Peers = new HashMap<>();
+    private double Loss = 0;
+    // Gilbert-Elliott two-state loss, used when P_good_bad > 0
+    private double P_good_bad = 0;
+    private double P_bad_good = 0;
+    private double Loss_good = 0;
+    private double Loss_bad = 0;
+    private boolean isBad = false;
+    private double Duplication = 0;
+    private long Delay = 0;             // nanos
+    private long Jitter = 0;            // nanos, delay varies by up to this either way
+    private double Reordering = 0;
+    private long Reorder_delay = TimeUnit.MILLISECONDS.toNanos(1);
+    private long Bandwidth = 0;         // bytes per second, 0 for no cap
+    private long Queue_limit = 0;       // bytes queued for the link, 0 for no limit
+    private long Queue_delay = Long.MAX_VALUE;  // nanos the link takes to drain a full queue
+    private long Link_free;             // System.nanoTime() the link is done with the queue
+
+    private final DelayQueue<Datagram> Scheduled = new DelayQueue<>();
+    // Scheduled and not sent yet, including one the scheduler took off the queue
+    private int Pending_cnt = 0;
+    private Thread scheduler;
+    private long Datagram_cnt = 0;
+    private long Sent_cnt = 0;
+    private long Dropped_cnt = 0;
+    private long Duplicated_cnt = 0;
+    private long Reordered_cnt = 0;
+
+    public ImpairedDatagramSocket() throws SocketException {
+        super();
+    }
+
+    public ImpairedDatagramSocket(int port) throws SocketException {
+        super(port);
+    }
+
+    public ImpairedDatagramSocket(SocketAddress bindaddr) throws SocketException {
+        super(bindaddr);
+    }
+
+    /*
+     * A destination: its order, the seqno of the first GUDP packet sent to it, and
+     * how many times each recent datagram was sent, by slot. A slot keeps the
+     * identity of its datagram, and starts over for another one.
+     */
+    private static class Peer {
+        final int ordinal;
+        final int base;
+        final long[] Identity = new long[COUNT_SLOTS];
+        final int[] Send_cnt = new int[COUNT_SLOTS];
+
+        Peer(int ordinal, int base) {
+            this.ordinal = ordinal;
+            this.base = base;
+        }
+
+        /* Count one more send of the datagram in slot; returns the count, from 1 */
+        int count(int slot, long identity) {
+            slot &= COUNT_SLOTS - 1;
+            if (Send_cnt[slot] == 0 || Identity[slot] != identity) {
+                Identity[slot] = identity;
+                Send_cnt[slot] = 0;
+            }
+            return ++Send_cnt[slot];
+        }
+    }
+
+    /* A packet waiting for its time on the wire; ties go in send order */
+    private static class Datagram implements Delayed {
+        final byte[] data;
+        final SocketAddress address;
+        final long due;
+        final long order;
+
+        Datagram(byte[] data, SocketAddress address, long due, long order) {
+            this.data = data;
+            this.address = address;
+            this.due = due;
+            this.order = order;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Datagram datagram = (Datagram) other;
+            if (due != datagram.due)
+                return due - datagram.due < 0 ? -1 : 1;
+            return Long.compare(order, datagram.order);
+        }
+    }
+
+    public synchronized void setSeed(long seed) {
+        Seed = seed;
+        Peers.clear();
+        isBad = false;
+    }
+
+    /* Independent loss with this probability */
+    public synchronized void setLoss(double probability) {
+        Loss = probability;
+        P_good_bad = 0;
+    }
+
+    /*
+     * Bursty loss: a good and a bad state, each with its loss probability, and the
+     * probabilities of moving from one to the other at each packet.
+     */
+    public synchronized void setBurstLoss(double pGoodToBad, double pBadToGood, double lossGood, double lossBad) {
+        P_good_bad = pGoodToBad;
+        P_bad_good = pBadToGood;
+        Loss_good = lossGood;
+        Loss_bad = lossBad;
+        isBad = false;
+    }
+
+    public synchronized void setDuplication(double probability) {
+        Duplication = probability;
+    }
+
+    /* One-way delay, varying uniformly by up to jitter either way */
+    public synchronized void setDelay(Duration delay, Duration jitter) {
+        Delay = delay.toNanos();
+        Jitter = jitter.toNanos();
+    }
+
+    /* With this probability a packet is held back by extra, so that later ones overtake it */
+    public synchronized void setReordering(double probability, Duration extra) {
+        Reordering = probability;
+        Reorder_delay = extra.toNanos();
+    }
+
+    /* Link rate in bytes per second, 0 for none; a full queue drops what arrives (tail drop) */
+    public synchronized void setBandwidth(long bytesPerSecond, int queueBytes) {
+        Bandwidth = bytesPerSecond;
+        Queue_limit = queueBytes;
+        Queue_delay = bytesPerSecond > 0 && queueBytes > 0
+                ? (long) (queueBytes * 1e9 / bytesPerSecond) : Long.MAX_VALUE;
+    }
+
+    /*
+     * Settings from a comma separated list of name=value, for command lines:
+     * seed, loss, burst (four values separated by '/', as setBurstLoss), dup,
+     * delay and jitter in ms, reorder, reorderdelay in ms, rate in bytes per second
+     * and queue in bytes.
+     */
+    public synchronized void configure(String spec) {
+        double jitter = 0, delay = 0;
+        int queue = 0;
+        long rate = 0;
+        for (String setting: spec.split(",")) {
+            String[] pair = setting.split("=", 2);
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Bad impairment setting: " + setting);
+            String value = pair[1];
+            switch (pair[0]) {
+                case "seed": setSeed(Long.parseLong(value)); break;
+                case "loss": setLoss(Double.parseDouble(value)); break;
+                case "burst":
+                    String[] p = value.split("/");
+                    if (p.length != 4)
+                        throw new IllegalArgumentException("burst takes pGoodToBad/pBadToGood/lossGood/lossBad");
+                    setBurstLoss(Double.parseDouble(p[0]), Double.parseDouble(p[1]),
+                            Double.parseDouble(p[2]), Double.parseDouble(p[3]));
+                    break;
+                case "dup": setDuplication(Double.parseDouble(value)); break;
+                case "delay": delay = Double.parseDouble(value); break;
+                case "jitter": jitter = Double.parseDouble(value); break;
+                case "reorder": Reordering = Double.parseDouble(value); break;
+                case "reorderdelay": Reorder_delay = (long) (Double.parseDouble(value) * 1e6); break;
+                case "rate": rate = Long.parseLong(value); break;
+                case "queue": queue = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown impairment: " + pair[0]);
+            }
+        }
+        setDelay(Duration.ofNanos((long) (delay * 1e6)), Duration.ofNanos((long) (jitter * 1e6)));
+        setBandwidth(rate, queue);
+    }
+
+    public void send(DatagramPacket packet) throws IOException {
+        long now = System.nanoTime();
+        byte[] data = null;
+        synchronized (this) {
+            Datagram_cnt++;
+            // The same draws for every packet, whatever is turned on, from its identity
+            long key = Seed ^ identify(packet) * 0x9E3779B97F4A7C15L;
+            double lossDraw = draw(key, 1);
+            double stateDraw = draw(key, 2);
+            double duplicateDraw = draw(key, 3);
+            double jitterDraw = draw(key, 4);
+            double reorderDraw = draw(key, 5);
+
+            boolean isLost;
+            if (P_good_bad > 0) {
+                isBad = isBad ? stateDraw >= P_bad_good : stateDraw < P_good_bad;
+                isLost = lossDraw < (isBad ? Loss_bad : Loss_good);
+            } else
+                isLost = lossDraw < Loss;
+            if (isLost) {
+                Dropped_cnt++;
+                return;
+            }
+            int copies = duplicateDraw < Duplication ? 2 : 1;
+            if (copies > 1)
+                Duplicated_cnt++;
+
+            long delay = Delay + (long) ((2 * jitterDraw - 1) * Jitter);
+            if (reorderDraw < Reordering) {
+                delay += Reorder_delay;
+                Reordered_cnt++;
+            }
+            for (int i = 0; i < copies; i++) {
+                long due = now + Math.max(0, delay);
+                if (Bandwidth > 0) {
+                    long start = Math.max(now, Link_free);
+                    if (start - now > Queue_delay) {
+                        Dropped_cnt++;
+                        continue;
+                    }
+                    Link_free = start + packet.getLength() * 1_000_000_000L / Bandwidth;
+                    due = Math.max(due, Link_free + Math.max(0, delay));
+                }
+                Sent_cnt++;
+                // Straight out only when nothing delayed is still on its way, or it would overtake
+                if (due == now && Pending_cnt == 0) {
+                    super.send(packet);
+                    continue;
+                }
+                if (data == null)
+                    data = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+                            packet.getOffset() + packet.getLength());
+                Scheduled.add(new Datagram(data, packet.getSocketAddress(), due, Datagram_cnt * 2 + i));
+                Pending_cnt++;
+                startScheduler();
+            }
+        }
+    }
+
+    /*
+     * What a datagram is, in terms that do not change from run to run: the order its
+     * destination was first sent to, rather than its address and ephemeral port, and
+     * for GUDP its type, length and seqno counted from the first GUDP packet sent to
+     * the destination (the BSN, or the ACK of the peer's BSN), rather than from the
+     * random BSN. Anything else is taken by a hash of its bytes. The result also
+     * tells how many times the same datagram was sent, this one included.
+     */
+    private long identify(DatagramPacket packet) {
+        byte[] data = packet.getData();
+        int offset = packet.getOffset(), length = packet.getLength();
+        boolean isGUDP = length >= GUDPPacket.HEADER_SIZE
+                && getShort(data, offset) == GUDPPacket.GUDP_VERSION;
+        int seqno = isGUDP ? getInt(data, offset + 4) : 0;
+        Peer peer = Peers.get(packet.getSocketAddress());
+        if (peer == null) {
+            peer = new Peer(Peers.size(), seqno);
+            Peers.put(packet.getSocketAddress(), peer);
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        int slot;
+        if (isGUDP) {
+            int type = getShort(data, offset + 2);
+            hash = mix(hash, type);
+            hash = mix(hash, seqno - peer.base);
+            hash = mix(hash, length);
+            // Data, bundle and BSN share the seqno space; ACKs and parity have their own
+            int kind = type == GUDPPacket.TYPE_ACK ? 1 : type == GUDPPacket.TYPE_PARITY ? 2
+                    : type == GUDPPacket.TYPE_DATA || type == GUDPPacket.TYPE_BUNDLE
+                    || type == GUDPPacket.TYPE_BSN ? 0 : 3;
+            slot = (seqno - peer.base) * 4 + kind;
+        } else {
+            for (int i = offset; i < offset + length; i++)
+                hash = mix(hash, data[i] & 0xff);
+            slot = (int) hash;
+        }
+        hash = mix(hash, peer.ordinal);
+        return hash ^ peer.count(slot, hash);
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return (short) ((data[offset] & 0xff) << 8 | data[offset + 1] & 0xff);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+    }
+
+    /* The i-th uniform draw in [0, 1) for key: a SplitMix64 output */
+    private static double draw(long key, int i) {
+        long z = key + i * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    /* One FNV-1a step over the bytes of value */
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (8 * i)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void startScheduler() {
+        if (scheduler != null)
+            return;
+        scheduler = new Thread(() -> {
+            while (!isClosed()) {
+                try {
+                    Datagram datagram = Scheduled.take();
+                    try {
+                        super.send(new DatagramPacket(datagram.data, datagram.data.length, datagram.address));
+                    } finally {
+                        synchronized (this) {
+                            Pending_cnt--;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    // A closed socket ends the thread, anything else is one more lost packet
+                }
+            }
+        }, "Impairment");
+        scheduler.setDaemon(true);
+        scheduler.start();
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (scheduler != null)
+                scheduler.interrupt();
+        }
+        super.close();
+    }
+
+    /* Packets handed to send(), and what became of them */
+    public synchronized long getDatagramCount() { return Datagram_cnt; }
+    public synchronized long getSentCount() { return Sent_cnt; }
+    public synchronized long getDroppedCount() { return Dropped_cnt; }
+    public synchronized long getDuplicatedCount() { return Duplicated_cnt; }
+    public synchronized long getReorderedCount() { return Reordered_cnt; }
+}
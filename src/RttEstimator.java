@@ -0,0 +1,86 @@
+import java.time.Duration;
+
+/*
+ * Retransmission timer calculation (RFC 6298): keeps a smoothed RTT and RTT
+ * variance from the samples taken on ACK arrival, and derives the RTO from them.
+ */
+public class RttEstimator {
+    public static final Duration INITIAL_RTO = Duration.ofMillis(1000);
+    public static final Duration MIN_RTO = Duration.ofMillis(50);
+    public static final Duration MAX_RTO = Duration.ofMillis(60000);
+    private static final int K = 4;
+
+    private long srtt;      // nanos, 0 until the first sample
+    private long rttvar;    // nanos
+    private long rto;       // nanos, without backoff
+    private int backoff;    // number of consecutive timer expirations
+
+    public RttEstimator() {
+        srtt = 0;
+        rttvar = 0;
+        rto = INITIAL_RTO.toNanos();
+        backoff = 0;
+    }
+
+    /*
+     * Feed one RTT measurement. Callers must follow Karn's rule and only pass
+     * samples for packets that were never retransmitted.
+     */
+    public synchronized void sample(long rttNanos) {
+        if (rttNanos < 0)
+            return;
+        if (srtt == 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = (7 * srtt + rttNanos) / 8;
+        }
+        rto = clamp(srtt + Math.max(1, K * rttvar));
+        backoff = 0;
+    }
+
+    /*
+     * The retransmission timer expired: double the RTO until a new valid sample arrives.
+     */
+    public synchronized void backoff() {
+        if (currentNanos() < MAX_RTO.toNanos())
+            backoff++;
+    }
+
+    /*
+     * An ACK acknowledged new data. Even when Karn's rule forbids taking a
+     * sample from it, the path is alive again, so drop the backoff.
+     */
+    public synchronized void resetBackoff() {
+        backoff = 0;
+    }
+
+    public synchronized long currentNanos() {
+        long value = rto;
+        for (int i = 0; i < backoff && value < MAX_RTO.toNanos(); i++)
+            value *= 2;
+        return clamp(value);
+    }
+
+    public Duration getRTO() {
+        return Duration.ofNanos(currentNanos());
+    }
+
+    /* Smoothed RTT in nanos, 0 before the first sample */
+    public synchronized long srttNanos() {
+        return srtt;
+    }
+
+    public synchronized Duration getSRTT() {
+        return Duration.ofNanos(srtt);
+    }
+
+    public synchronized Duration getRTTVar() {
+        return Duration.ofNanos(rttvar);
+    }
+
+    private static long clamp(long nanos) {
+        return Math.max(MIN_RTO.toNanos(), Math.min(MAX_RTO.toNanos(), nanos));
+    }
+}
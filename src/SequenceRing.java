@@ -0,0 +1,63 @@
+/*
+ * Fixed-capacity ring of in-flight items, indexed by sequence offset. Items are
+ * appended at the tail and released from the head once acknowledged; slot i lives
+ * at i modulo the capacity, so insert, lookup and release are all O(1) and memory
+ * is bounded by the capacity instead of by the length of the transfer.
+ * Not thread safe: owned by the sender thread.
+ */
+public class SequenceRing<T> {
+    private final Object[] slots;
+    private final int mask;
+    private int head;   // index of the oldest item still held
+    private int tail;   // index the next item gets
+
+    public SequenceRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+        head = 0;
+        tail = 0;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public int head() {
+        return head;
+    }
+
+    public int tail() {
+        return tail;
+    }
+
+    public int size() {
+        return tail - head;
+    }
+
+    public boolean isFull() {
+        return size() == slots.length;
+    }
+
+    public void add(T item) {
+        if (isFull())
+            throw new IllegalStateException("Ring full: " + slots.length + " slots");
+        slots[tail & mask] = item;
+        tail++;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < head || index >= tail)
+            throw new IndexOutOfBoundsException("Index " + index + " outside [" + head + ", " + tail + ")");
+        return (T) slots[index & mask];
+    }
+
+    /* Release every slot below index */
+    public void releaseTo(int index) {
+        while (head < index && head < tail) {
+            slots[head & mask] = null;
+            head++;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Token bucket for send pacing, in bytes. Tokens accumulate at the rate up to the
+ * burst size; a packet may go out while the balance is positive and takes its size
+ * from it, so the balance can go into debt by up to one packet. Not thread safe:
+ * owned by the sender thread.
+ */
+public class TokenBucket {
+    private double rate;    // bytes per second, 0 for no limit
+    private double burst;   // bytes
+    private double tokens;
+    private long last;      // System.nanoTime() of the last refill
+
+    public TokenBucket(double rate, double burst) {
+        setRate(rate, burst);
+        tokens = burst;
+        last = System.nanoTime();
+    }
+
+    public void setRate(double rate, double burst) {
+        this.rate = rate;
+        this.burst = burst;
+        tokens = Math.min(tokens, burst);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    private void refill(long now) {
+        if (now - last > 0) {
+            tokens = Math.min(burst, tokens + rate * (now - last) / 1e9);
+            last = now;
+        }
+    }
+
+    public boolean isAvailable(long now) {
+        if (rate <= 0)
+            return true;
+        refill(now);
+        return tokens > 0;
+    }
+
+    public void consume(int bytes, long now) {
+        if (rate <= 0)
+            return;
+        refill(now);
+        tokens -= bytes;
+    }
+
+    /* System.nanoTime() when the balance is positive again */
+    public long nextAvailable(long now) {
+        if (rate <= 0)
+            return now;
+        refill(now);
+        if (tokens > 0)
+            return now;
+        return now + 1 + (long) (-tokens * 1e9 / rate);
+    }
+}
@@ -8,14 +8,28 @@ import java.io.IOException;
 public class VSFtp {
     public static final short MINLEN = 4;   
     public static final short MAX_FILENAME_LEN = 128;
-    public static final Integer MAX_DATA_LEN = 128;
+    // Chunks follow the segment size negotiated by GUDP, up to jumbo frames;
+    // CLASSIC_DATA_LEN is for peers that do not negotiate
+    public static final Integer CLASSIC_DATA_LEN = 128;
+    public static final Integer MAX_DATA_LEN = GUDPPacket.MAX_SEGMENT_LEN - MINLEN;
     public static final Integer MAX_LEN = MAX_DATA_LEN + MINLEN;
     public static final short TYPE_BEGIN = 1;
     public static final short TYPE_DATA = 2;
     public static final short TYPE_END = 3; 
+    // DATA holding a piece of a compressed block, announced in BEGIN
+    public static final short TYPE_ZDATA = 4;
+    public static final String COMPRESSION_DEFLATE = "deflate";
+    // Compressed files are deflated in blocks of this many bytes, each a stream of its own
+    public static final int COMPRESS_BLOCK_LEN = 64 * 1024;
+    // Multi-stream: the upper half of the type field holds the stream of the message,
+    // 0 for classic peers, so several files can be sent interleaved
+    public static final int MAX_STREAMS = 1 << 16;
+    private static final int STREAM_SHIFT = 16;
+    private static final int TYPE_MASK = MAX_STREAMS - 1;
 
     private ByteBuffer byteBuffer;
     private int vsType;
+    private int vsStream;
     private byte[] vsData;
     private int datalength;
     
@@ -23,8 +37,10 @@ public class VSFtp {
         byte[] packetData = packet.getData();
         byteBuffer = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
         byteBuffer.order(ByteOrder.BIG_ENDIAN);
-        vsType = byteBuffer.getInt();
-        if (vsType == TYPE_BEGIN || vsType == TYPE_DATA) {
+        int field = byteBuffer.getInt();
+        vsType = field & TYPE_MASK;
+        vsStream = field >>> STREAM_SHIFT;
+        if (vsType == TYPE_BEGIN || vsType == TYPE_DATA || vsType == TYPE_ZDATA) {
             vsData = new byte[byteBuffer.remaining()];
             byteBuffer.get(vsData);
             datalength = vsData.length;
@@ -35,7 +51,15 @@ public class VSFtp {
         byteBuffer = ByteBuffer.allocate(vslen);
         byteBuffer.order(ByteOrder.BIG_ENDIAN);     
         byteBuffer.putInt(vstype);
-        vsType = vstype;
+        vsType = vstype & TYPE_MASK;
+        vsStream = vstype >>> STREAM_SHIFT;
+    }
+
+    /* Type field of a message of type vstype on the given stream, for the constructors and header() */
+    public static int streamType(int vstype, int stream) {
+        if (stream < 0 || stream >= MAX_STREAMS)
+            throw new IllegalArgumentException("VS stream out of range: " + stream);
+        return stream << STREAM_SHIFT | vstype;
     }
 
     public VSFtp(int vstype) {
@@ -58,18 +82,64 @@ public class VSFtp {
         vsData = encodedName;
     }
 
+    /*
+     * BEGIN announcing that the file data comes compressed: the codec name follows the
+     * file name, after a NUL.
+     */
+    public VSFtp(int vstype, String filename, String compression) {
+        this(vstype, compression == null ? filename : filename + '\0' + compression);
+    }
+
+    /*
+     * Header of a message of type vstype, ready to be written in front of data that
+     * is read in place, e.g. by the zero-copy file sender.
+     */
+    public static ByteBuffer header(int vstype) {
+        ByteBuffer header = ByteBuffer.allocate(MINLEN);
+        header.order(ByteOrder.BIG_ENDIAN);
+        header.putInt(vstype);
+        header.flip();
+        return header;
+    }
+
     public int getType() {
         return vsType;
     }
 
+    /* Type of the message in packet, read in place; -1 if it is too short for one */
+    public static int typeOf(DatagramPacket packet) {
+        if (packet.getLength() < MINLEN)
+            return -1;
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int field = (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | data[offset + 3] & 0xff;
+        return field & TYPE_MASK;
+    }
+
+    public int getStream() {
+        return vsStream;
+    }
+
     public String getFilename() throws IOException {
         if (vsType != TYPE_BEGIN)
             throw new IOException("Not BEGIN message");
-        return new String(vsData, StandardCharsets.UTF_8);
+        String name = new String(vsData, StandardCharsets.UTF_8);
+        int end = name.indexOf('\0');
+        return end < 0 ? name : name.substring(0, end);
+    }
+
+    /* Codec of the file data announced in BEGIN, null if it is sent as is */
+    public String getCompression() throws IOException {
+        if (vsType != TYPE_BEGIN)
+            throw new IOException("Not BEGIN message");
+        String name = new String(vsData, StandardCharsets.UTF_8);
+        int end = name.indexOf('\0');
+        return end < 0 ? null : name.substring(end + 1);
     }
 
     public byte[] getData() throws IOException {
-        if (vsType != TYPE_DATA)
+        if (vsType != TYPE_DATA && vsType != TYPE_ZDATA)
             throw new IOException("Not DATA message");
         return vsData;
     }
@@ -102,15 +172,19 @@ public class VSFtp {
             type = "DATA";
         else if (vsType == TYPE_END)
             type = "END";
+        else if (vsType == TYPE_ZDATA)
+            type = "ZDATA";
         else
             type = "??";
 
         String data = "";
         if (vsType == TYPE_BEGIN)
             data = " " + getFilename();
-        else if (vsType == TYPE_DATA)
+        else if (vsType == TYPE_DATA || vsType == TYPE_ZDATA)
             data = " <" + String.valueOf(datalength) + " bytes>";
 
+        if (vsStream != 0)
+            data += " (stream " + vsStream + ")";
         return type + data;
     }
 }
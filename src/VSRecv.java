@@ -1,6 +1,4 @@
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
@@ -9,24 +7,37 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 class ReceiveContext {
     private InetSocketAddress sockaddr;
+    private int stream;
     private enum State {NONE, OPEN, CLOSED};
     private State state;
-    private OutputStream outputStream;
+    private AsyncFileWriter writer;
+    private AsyncFileWriter.Target target;
+    private long offset;
+    // Inflater of a file sent compressed and its output buffer, null for a plain one
+    private Inflater inflater;
+    private byte[] inflated;
     private boolean overwrite = false;
     private boolean debug = false;
     
-    ReceiveContext(InetSocketAddress sa) {
+    ReceiveContext(InetSocketAddress sa, int st) {
         sockaddr = sa;
+        stream = st;
         state = State.NONE;
     }
 
     public boolean hasSocketAddress(InetSocketAddress sa) {
         return sockaddr.equals(sa);
     }
+    public int getStream() {
+        return stream;
+    }
     public void setState(State newstate) {
         state = newstate;
     }
@@ -42,6 +53,10 @@ class ReceiveContext {
         overwrite = ow;
     }
 
+    public void setWriter(AsyncFileWriter wr) {
+        writer = wr;
+    }
+
     private String getLocalFilename(String filename) {
         String localname = filename;
         File file = new File(localname);
@@ -57,9 +72,7 @@ class ReceiveContext {
         return localname;
     }
     
-    public void processPacket(DatagramPacket packet) throws IOException {
-        VSFtp vspacket = new VSFtp(packet);
-
+    public void processPacket(DatagramPacket packet, VSFtp vspacket) throws IOException {
         if (debug) {
             InetSocketAddress sockaddr = (InetSocketAddress) packet.getSocketAddress();
             System.out.printf("From %s (%d bytes): VS %s\n",
@@ -70,7 +83,22 @@ class ReceiveContext {
             if ((state == State.NONE) || (state == State.CLOSED)) {
                 String filename = vspacket.getFilename();
                 String localname = getLocalFilename(filename);
-                outputStream = new FileOutputStream(localname);
+                String compression = vspacket.getCompression();
+                if (compression != null && !compression.equals(VSFtp.COMPRESSION_DEFLATE))
+                    throw new IOException("Unknown VS compression " + compression);
+                target = writer.open(localname);
+                offset = 0;
+                if (compression != null) {
+                    if (inflater == null) {
+                        inflater = new Inflater();
+                        inflated = new byte[VSFtp.COMPRESS_BLOCK_LEN];
+                    }
+                }
+                else if (inflater != null) {
+                    inflater.end();
+                    inflater = null;
+                    inflated = null;
+                }
                 state = State.OPEN;
             }
             else
@@ -78,15 +106,26 @@ class ReceiveContext {
         }
         else if (vspacket.getType() == VSFtp.TYPE_DATA) {
             if (state == State.OPEN) {
+                // Chunks are written by offset, off the packet thread
                 byte[] data = vspacket.getData();
-                outputStream.write(data);
+                writer.write(target, offset, data, data.length);
+                offset += data.length;
             }
             else
                 throw new IOException("VS receiver not active"); 
         }
+        else if (vspacket.getType() == VSFtp.TYPE_ZDATA) {
+            if (state == State.OPEN && inflater != null)
+                inflate(vspacket.getData());
+            else
+                throw new IOException("VS receiver not active"); 
+        }
         else if (vspacket.getType() == VSFtp.TYPE_END) {
             if (state == State.OPEN) {
-                outputStream.close();
+                if (inflater != null && inflater.getBytesRead() > 0)
+                    throw new IOException("Truncated VS compressed block");
+                writer.close(target);
+                target = null;
                 state = State.CLOSED;
             }
             else
@@ -97,6 +136,38 @@ class ReceiveContext {
 		}
     }
 
+    /*
+     * Streaming decompression: each compressed block is a deflate stream of its own,
+     * arriving in pieces; whatever a piece inflates to is written out right away.
+     */
+    private void inflate(byte[] data) throws IOException {
+        inflater.setInput(data);
+        try {
+            while (true) {
+                int n = inflater.inflate(inflated);
+                if (n > 0) {
+                    // The writer keeps the array until it is on disk
+                    writer.write(target, offset, Arrays.copyOf(inflated, n), n);
+                    offset += n;
+                }
+                if (inflater.finished()) {
+                    // Chunks do not span blocks
+                    if (inflater.getRemaining() > 0)
+                        throw new IOException("Invalid VS compressed block");
+                    inflater.reset();
+                    break;
+                }
+                if (n == 0) {
+                    if (inflater.needsInput())
+                        break;
+                    throw new IOException("Invalid VS compressed block");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+    }
+
     public boolean isClosed() {
         return state == State.CLOSED;
     }
@@ -104,26 +175,28 @@ class ReceiveContext {
 
 class VSFtpReceiver implements Runnable {
     private GUDPSocket gUdpSocket;
-    private ArrayList<ReceiveContext> receiveContexts = new ArrayList<ReceiveContext>();
+    // One context per stream of each peer, so files sent interleaved are written side by side
+    private Map<InetSocketAddress, Map<Integer, ReceiveContext>> receiveContexts = new HashMap<InetSocketAddress, Map<Integer, ReceiveContext>>();
     private String[] fileNames;
     private boolean debug = false;
     private boolean overwrite = false;
+    private AsyncFileWriter writer = new AsyncFileWriter(AsyncFileWriter.DEFAULT_QUEUE_CHUNKS);
     
     VSFtpReceiver(GUDPSocket socket) {
         gUdpSocket = socket;
     }
 
-    public ReceiveContext getContext(DatagramPacket packet) {
+    public ReceiveContext getContext(DatagramPacket packet, int stream) {
         InetSocketAddress sockaddr = (InetSocketAddress) packet.getSocketAddress();
-        for (ReceiveContext context: receiveContexts) {
-            if (context.hasSocketAddress(sockaddr))
-                return context;
+        Map<Integer, ReceiveContext> streams = receiveContexts.computeIfAbsent(sockaddr, k -> new HashMap<Integer, ReceiveContext>());
+        ReceiveContext context = streams.get(stream);
+        if (context == null) {
+            context = new ReceiveContext(sockaddr, stream);
+            context.setDebug(debug);
+            context.setOverwrite(overwrite);
+            context.setWriter(writer);
+            streams.put(stream, context);
         }
-        /* Not found */
-        ReceiveContext context = new ReceiveContext(sockaddr);
-        context.setDebug(debug);
-        context.setOverwrite(overwrite);
-        receiveContexts.add(context);
         return context;
     }
 
@@ -140,13 +213,15 @@ class VSFtpReceiver implements Runnable {
     }
 
     public void run() {
+        // VSFtp copies the data out, so one buffer serves every receive
+        byte[] buf = new byte[VSFtp.MAX_LEN];
         while (true) {
             try {
-                byte[] buf = new byte[VSFtp.MAX_LEN];
                 DatagramPacket packet = new DatagramPacket(buf, VSFtp.MAX_LEN);
                 gUdpSocket.receive(packet);
-                ReceiveContext context = getContext(packet);
-                context.processPacket(packet);
+                VSFtp vspacket = new VSFtp(packet);
+                ReceiveContext context = getContext(packet, vspacket.getStream());
+                context.processPacket(packet, vspacket);
             } catch (Exception e) {
                 System.err.println("Exception in VS receiver");
                 e.printStackTrace();
@@ -158,11 +233,14 @@ class VSFtpReceiver implements Runnable {
 public class VSRecv {
     static boolean debug_flag = false;
     static boolean overwrite_flag = false;
+    static boolean nio_flag = false;
+    static int segment_size = 0;
+    static String impairment = null;
     static int port;
     static GUDPSocket gUdpSocket;
     
     private static void usage() {
-        System.err.print( "Usage: VSRecv [-d] [-o] port\n");
+        System.err.print( "Usage: VSRecv [-d] [-o] [-n] [-m mss] [-i impairments] port\n");
         System.exit(1);
     }
 
@@ -176,6 +254,15 @@ public class VSRecv {
             else if (args[index].equals("-o")) {
                 overwrite_flag = true;
             }
+            else if (args[index].equals("-n")) {
+                nio_flag = true;
+            }
+            else if (args[index].equals("-i") && args.length > index + 1) {
+                impairment = args[++index];
+            }
+            else if (args[index].equals("-m") && args.length > index + 1) {
+                segment_size = Integer.parseInt(args[++index]);
+            }
             else
                 usage();
             index++;
@@ -189,8 +276,23 @@ public class VSRecv {
 
     public static void main(String[] args) throws IOException {
         getargs(args);
-        DatagramSocket dsock = new DatagramSocket(port);
-        gUdpSocket = new GUDPSocket(dsock);
+        if (debug_flag)
+            GUDPLog.setLevel(GUDPLog.Level.DEBUG);
+        if (nio_flag) {
+            gUdpSocket = GUDPChannelSocket.open(new GUDPEventLoopGroup(1), new InetSocketAddress(port));
+        } else {
+            DatagramSocket dsock;
+            if (impairment != null) {
+                // Emulated network conditions, see ImpairedDatagramSocket.configure()
+                ImpairedDatagramSocket isock = new ImpairedDatagramSocket(port);
+                isock.configure(impairment);
+                dsock = isock;
+            } else
+                dsock = new DatagramSocket(port);
+            gUdpSocket = new GUDPSocket(dsock);
+        }
+        if (segment_size > 0)
+            gUdpSocket.setMaxSegmentSize(segment_size);
 
         VSFtpReceiver vsReceiver = new VSFtpReceiver(gUdpSocket);
         vsReceiver.setOverwrite(overwrite_flag); 
@@ -1,48 +1,177 @@
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 class VSFtpSender implements Runnable {
     private GUDPSocket gUdpSocket;
     private ArrayList<InetSocketAddress> destSocketAddresses;
     private String[] fileNames;
     private boolean debug = false;
+    private boolean compress = false;
+    private int streams = 1;
+    private volatile Exception failure;
+    // Compression works on blocks of VSFtp.COMPRESS_BLOCK_LEN; a block that does not
+    // shrink by at least 1/COMPRESS_MIN_SAVING goes as is
+    static final int COMPRESS_MIN_SAVING = 8;
     
     VSFtpSender(GUDPSocket socket, ArrayList<InetSocketAddress> destinations, String[] files) {
         gUdpSocket = socket;
         destSocketAddresses = destinations;
         fileNames = files;
+        // Fan-out: each packet is sent once and delivered to every destination
+        gUdpSocket.setDestinations(destinations);
     }
 
     private void sendAll(VSFtp vsPacket) throws IOException {
-        for (InetSocketAddress sockaddr: destSocketAddresses) {
-            DatagramPacket datagramPacket = vsPacket.getPacket(sockaddr);
-            gUdpSocket.send(datagramPacket);
-        }
+        DatagramPacket datagramPacket = vsPacket.getPacket(destSocketAddresses.get(0));
+        gUdpSocket.send(datagramPacket);
     }
 
-    private void sendFile(String fileName) throws IOException {
-        FileInputStream inputStream = new FileInputStream(fileName);
-        VSFtp vsBegin = new VSFtp(VSFtp.TYPE_BEGIN, fileName);
-        sendAll(vsBegin);
-        byte[] fileBuffer = new byte[VSFtp.MAX_DATA_LEN];
-        int byteRead;
-        while ((byteRead = inputStream.read(fileBuffer, 0, VSFtp.MAX_DATA_LEN)) != -1) {
-            VSFtp vsData = new VSFtp(VSFtp.TYPE_DATA, fileBuffer, byteRead);
-            sendAll(vsData);
+    private void sendFile(String fileName, int stream) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            VSFtp vsBegin = new VSFtp(VSFtp.streamType(VSFtp.TYPE_BEGIN, stream), fileName,
+                    compress ? VSFtp.COMPRESSION_DEFLATE : null);
+            sendAll(vsBegin);
+            if (compress)
+                sendCompressed(channel, stream);
+            else
+                sendRaw(channel, stream);
         }
-        VSFtp vsEnd = new VSFtp(VSFtp.TYPE_END);
+        VSFtp vsEnd = new VSFtp(VSFtp.streamType(VSFtp.TYPE_END, stream));
         sendAll(vsEnd);
         gUdpSocket.finish();
     }
+
+    /*
+     * Multi-stream: up to streams files in flight at once, each on a VSFtp stream of
+     * its own, interleaved over the one GUDP session and its congestion window. A
+     * stream takes the next file as soon as it is done with one, so a large file does
+     * not hold back the small ones behind it.
+     */
+    private void sendStreams() throws IOException, InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[Math.min(streams, fileNames.length)];
+        for (int i = 0; i < workers.length; i++) {
+            int stream = i;
+            workers[i] = Thread.ofVirtual().name("VSFTP Stream " + stream).start(() -> {
+                int index;
+                try {
+                    while (failure.get() == null && (index = next.getAndIncrement()) < fileNames.length)
+                        sendFile(fileNames[index], stream);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+        }
+        for (Thread worker: workers)
+            worker.join();
+        if (failure.get() != null)
+            throw failure.get();
+    }
+
+    /*
+     * File data goes from the FileChannel straight into the GUDP packet buffers,
+     * behind a VSFtp DATA header written in place; no intermediate copies.
+     */
+    private void sendRaw(FileChannel channel, int stream) throws IOException {
+        ByteBuffer vsHeader = VSFtp.header(VSFtp.streamType(VSFtp.TYPE_DATA, stream));
+        InetSocketAddress sockaddr = destSocketAddresses.get(0);
+        int chunkLength = getChunkLength();
+        long position = 0;
+        int byteRead;
+        while (true) {
+            vsHeader.rewind();
+            byteRead = gUdpSocket.send(vsHeader, channel, position, chunkLength, sockaddr);
+            if (byteRead <= 0)
+                break;
+            position += byteRead;
+        }
+    }
+
+    /*
+     * Compressed file data: each block of the file is deflated on its own and sent as
+     * ZDATA chunks, which the receiver inflates as they arrive. Blocks that do not
+     * compress are sent as plain DATA chunks.
+     */
+    private void sendCompressed(FileChannel channel, int stream) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(VSFtp.COMPRESS_BLOCK_LEN);
+        byte[] deflated = new byte[VSFtp.COMPRESS_BLOCK_LEN];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        int chunkLength = getChunkLength();
+        byte[] chunk = new byte[VSFtp.MINLEN + chunkLength];
+        try {
+            while (true) {
+                block.clear();
+                while (block.hasRemaining() && channel.read(block) >= 0)
+                    ;
+                int length = block.position();
+                if (length == 0)
+                    break;
+
+                deflater.reset();
+                deflater.setInput(block.array(), 0, length);
+                deflater.finish();
+                int deflatedLength = 0;
+                int limit = length - length / COMPRESS_MIN_SAVING;
+                while (!deflater.finished() && deflatedLength < limit)
+                    deflatedLength += deflater.deflate(deflated, deflatedLength, limit - deflatedLength);
+                if (deflater.finished())
+                    sendChunks(VSFtp.streamType(VSFtp.TYPE_ZDATA, stream), deflated, deflatedLength, chunk, chunkLength);
+                else
+                    sendChunks(VSFtp.streamType(VSFtp.TYPE_DATA, stream), block.array(), length, chunk, chunkLength);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void sendChunks(int vstype, byte[] data, int length, byte[] chunk, int chunkLength) throws IOException {
+        ByteBuffer.wrap(chunk).putInt(vstype);
+        InetSocketAddress sockaddr = destSocketAddresses.get(0);
+        for (int offset = 0; offset < length; offset += chunkLength) {
+            int n = Math.min(chunkLength, length - offset);
+            System.arraycopy(data, offset, chunk, VSFtp.MINLEN, n);
+            gUdpSocket.send(new DatagramPacket(chunk, VSFtp.MINLEN + n, sockaddr));
+        }
+    }
     
+    /* Fill the segment size negotiated with all destinations */
+    private int getChunkLength() throws IOException {
+        int mss = gUdpSocket.getMaxPayloadSize();
+        if (mss == 0)
+            return VSFtp.CLASSIC_DATA_LEN;
+        return Math.min(VSFtp.MAX_DATA_LEN, mss - VSFtp.MINLEN);
+    }
+
+    /* Deflate the file data; the receivers must know ZDATA */
+    public boolean setCompression(boolean comp) {
+        boolean old = this.compress;
+        this.compress = comp;
+        return old;
+    }
+
+    /* Files sent at once, each on its own stream; receivers must know VSFtp streams if more than 1 */
+    public int setStreams(int count) {
+        if (count < 1 || count > VSFtp.MAX_STREAMS)
+            throw new IllegalArgumentException("Stream count out of range: " + count);
+        int old = this.streams;
+        this.streams = count;
+        return old;
+    }
+
     private boolean setDebug(boolean dbg) {
         boolean old = this.debug;
         this.debug = dbg;
@@ -51,25 +180,49 @@ class VSFtpSender implements Runnable {
 
     public void run() {
         try {
-            for (String fileName: this.fileNames) {
-                sendFile(fileName);
-            }
-	    gUdpSocket.close();
+            if (streams > 1)
+                sendStreams();
+            else
+                for (String fileName: this.fileNames) {
+                    sendFile(fileName, 0);
+                }
         } catch (Exception e) {
+            failure = e;
             System.err.println("Exception in VS sender");
             e.printStackTrace();
+        } finally {
+            // The session ends here either way, or the sender would wait for more files
+            try {
+                gUdpSocket.close();
+            } catch (IOException e) {
+                if (failure == null)
+                    failure = e;
+            }
         }
     }
+
+    /* What ended run() early, null if every file was sent */
+    public Exception getFailure() {
+        return failure;
+    }
 }
 
 public class VSSend {
     static boolean debug = false;
+    static boolean nio_flag = false;
+    static boolean probe_flag = false;
+    static int segment_size = 0;
+    static int fec_block = 0;
+    static boolean fec_adaptive = false;
+    static boolean compress_flag = false;
+    static int stream_count = 1;
+    static String impairment = null;
     static ArrayList<InetSocketAddress> destSocketAddresses;
     static String[] fileNames;
     static GUDPSocket gUdpSocket;
     
     private static void usage() {
-        System.err.print( "Usage: VSSend [-d] host1:port1 [host2:port2] ... file1 [file2]...\n");
+        System.err.print( "Usage: VSSend [-d] [-n] [-p] [-m mss] [-f|-F block] [-z] [-s streams] [-i impairments] host1:port1 [host2:port2] ... file1 [file2]...\n");
         System.exit(1);
 
     }
@@ -77,8 +230,27 @@ public class VSSend {
     private static void getargs(String[] args) {
         int index = 0;
 
-        if (args.length > 0 && args[index].equals("-d")) {
-            debug = true;
+        while (args.length > index && args[index].startsWith("-")) {
+            if (args[index].equals("-d"))
+                debug = true;
+            else if (args[index].equals("-n"))
+                nio_flag = true;
+            else if (args[index].equals("-i") && args.length > index + 1)
+                impairment = args[++index];
+            else if (args[index].equals("-z"))
+                compress_flag = true;
+            else if (args[index].equals("-s") && args.length > index + 1)
+                stream_count = Integer.parseInt(args[++index]);
+            else if (args[index].equals("-p"))
+                probe_flag = true;
+            else if (args[index].equals("-m") && args.length > index + 1)
+                segment_size = Integer.parseInt(args[++index]);
+            else if ((args[index].equals("-f") || args[index].equals("-F")) && args.length > index + 1) {
+                fec_adaptive = args[index].equals("-F");
+                fec_block = Integer.parseInt(args[++index]);
+            }
+            else
+                usage();
             index++;
         }
         destSocketAddresses = new ArrayList<InetSocketAddress>();
@@ -98,13 +270,58 @@ public class VSSend {
     }
 
 
-    public static void main(String[] args) throws IOException {
+    private static void configure(GUDPSocket socket) throws IOException {
+        if (debug)
+            GUDPLog.setLevel(GUDPLog.Level.DEBUG);
+        if (segment_size > 0)
+            socket.setMaxSegmentSize(segment_size);
+        socket.setPathMTUProbing(probe_flag);
+        socket.setForwardErrorCorrection(fec_block, fec_adaptive);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         getargs(args);
-        DatagramSocket dsock = new DatagramSocket();
+        if (nio_flag) {
+            // Event loop engine: wait for the transfer, then shut the loop down
+            GUDPEventLoopGroup group = new GUDPEventLoopGroup(1);
+            GUDPChannelSocket channelSocket = GUDPChannelSocket.open(group, new InetSocketAddress(0));
+            gUdpSocket = channelSocket;
+            configure(gUdpSocket);
+            VSFtpSender vsSender = new VSFtpSender(gUdpSocket, destSocketAddresses, fileNames);
+            vsSender.setCompression(compress_flag);
+            vsSender.setStreams(stream_count);
+            Thread sender = new Thread(vsSender, "VSFTP Sender");
+            sender.start();
+            sender.join();
+            try {
+                channelSocket.awaitSendComplete();
+            } finally {
+                group.close();
+            }
+            if (vsSender.getFailure() != null)
+                System.exit(1);
+            return;
+        }
+        DatagramSocket dsock;
+        if (impairment != null) {
+            // Emulated network conditions, see ImpairedDatagramSocket.configure()
+            ImpairedDatagramSocket isock = new ImpairedDatagramSocket();
+            isock.configure(impairment);
+            dsock = isock;
+        } else
+            dsock = new DatagramSocket();
         gUdpSocket = new GUDPSocket(dsock);
+        configure(gUdpSocket);
 
         VSFtpSender vsSender = new VSFtpSender(gUdpSocket, destSocketAddresses, fileNames);
+        vsSender.setCompression(compress_flag);
+        vsSender.setStreams(stream_count);
         Thread sender = new Thread(vsSender, "VSFTP Sender");
         sender.start();
+        // The protocol threads are virtual: the JVM exits once the transfer is ACKed
+        sender.join();
+        gUdpSocket.awaitSendComplete();
+        if (vsSender.getFailure() != null)
+            System.exit(1);
     }
 }